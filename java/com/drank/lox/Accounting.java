@@ -0,0 +1,172 @@
+package com.drank.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Approximate memory use of one session, kept so that a script sharing a
+// JVM with others can be stopped before it puts the heap under pressure.
+// Three counters are kept:
+//
+//   strings  bytes of the strings built by +, two per character
+//   globals  distinct global variables defined
+//   ast      syntax tree nodes parsed
+//
+// Each has an optional soft and hard quota, set for every session with
+// --quota counter=soft:hard (sizes may end in k, m or g, either side may be
+// left empty). Passing the soft quota prints a warning once, passing the
+// hard one is a runtime error, raised before the memory is allocated where
+// that can be known up front. The counters may be charged from several
+// threads at once.
+class Accounting {
+    static final int STRINGS = 0;
+    static final int GLOBALS = 1;
+    static final int AST = 2;
+    static final String[] NAMES = { "strings", "globals", "ast" };
+
+    // quotas of every session, 0 for none
+    private static final long[] soft = new long[NAMES.length];
+    private static final long[] hard = new long[NAMES.length];
+
+    private final PrintStream err;
+    private final long[] used = new long[NAMES.length];
+    private final boolean[] warned = new boolean[NAMES.length];
+    private final Set<String> globals = new HashSet<>();
+
+    Accounting(PrintStream err) {
+        this.err = err;
+    }
+
+    // Sets quotas from a counter=soft:hard option value.
+    static void configure(String quota) {
+        int equals = quota.indexOf('=');
+        int colon = quota.indexOf(':', equals + 1);
+        if (equals < 0 || colon < 0) {
+            throw new IllegalArgumentException("Expect counter=soft:hard, got '" + quota + "'.");
+        }
+
+        String name = quota.substring(0, equals);
+        for (int counter = 0; counter < NAMES.length; counter++) {
+            if (NAMES[counter].equals(name)) {
+                soft[counter] = size(quota.substring(equals + 1, colon));
+                hard[counter] = size(quota.substring(colon + 1));
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Unknown counter '" + name + "'.");
+    }
+
+    // Whether the counter has a soft or hard quota, so charging it may warn
+    // or fail.
+    static boolean limited(int counter) {
+        return soft[counter] > 0 || hard[counter] > 0;
+    }
+
+    // A size, which may end in k, m or g, or 0 for an empty one.
+    static long size(String size) {
+        if (size.isEmpty()) { return 0; }
+        long unit = 1;
+        switch (Character.toLowerCase(size.charAt(size.length() - 1))) {
+            case 'k': unit = 1L << 10; break;
+            case 'm': unit = 1L << 20; break;
+            case 'g': unit = 1L << 30; break;
+        }
+        if (unit > 1) { size = size.substring(0, size.length() - 1); }
+        return Long.parseLong(size) * unit;
+    }
+
+    synchronized long used(int counter) {
+        return used[counter];
+    }
+
+    // Accounts for a string of length characters about to be built at the
+    // operator.
+    void string(Token operator, int length) {
+        add(STRINGS, 2L * length, operator);
+    }
+
+    // Accounts for a global being defined. Only a new one counts, and one
+    // defined without a token, restored from a snapshot, is never refused.
+    synchronized void global(String name, Token token) {
+        if (globals.add(name)) { add(GLOBALS, 1, token); }
+    }
+
+    // Accounts for parsed statements, reporting a hard quota at the token.
+    void ast(List<Stmt> statements, Token token) {
+        ast(nodes(statements), token);
+    }
+
+    void ast(long nodes, Token token) {
+        add(AST, nodes, token);
+    }
+
+    private synchronized void add(int counter, long amount, Token token) {
+        long total = used[counter] + amount;
+        if (token != null && hard[counter] > 0 && total > hard[counter]) {
+            throw new RuntimeError(token, "Memory quota exceeded: " + NAMES[counter]
+                    + " would reach " + total + ", over the hard quota of " + hard[counter] + ".");
+        }
+        used[counter] = total;
+
+        if (soft[counter] > 0 && total > soft[counter] && !warned[counter]) {
+            warned[counter] = true;
+            err.println("[quota] " + NAMES[counter] + " reached " + total
+                    + ", over the soft quota of " + soft[counter] + ".");
+        }
+    }
+
+    // The counters as name=value pairs, for --memory-stats.
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int counter = 0; counter < NAMES.length; counter++) {
+            if (counter > 0) { builder.append(" "); }
+            builder.append(NAMES[counter]).append("=").append(used[counter]);
+        }
+        return builder.toString();
+    }
+
+    // Counts the statement and expression nodes, without recursing so deep
+    // trees from the stack safe parser can be counted too. Operands left
+    // out by a syntax error are not counted.
+    static long nodes(List<Stmt> statements) {
+        long count = 0;
+        Deque<Expr> pending = new ArrayDeque<>();
+        for (Stmt statement : statements) {
+            if (statement == null) { continue; }
+            count++;
+            switch (statement.kind) {
+                case Stmt.EXPRESSION: push(pending, ((Stmt.Expression)statement).expression); break;
+                case Stmt.PRINT: push(pending, ((Stmt.Print)statement).expression); break;
+                case Stmt.VAR: push(pending, ((Stmt.Var)statement).initializer); break;
+            }
+
+            while (!pending.isEmpty()) {
+                Expr expr = pending.pop();
+                count++;
+                switch (expr.kind) {
+                    case Expr.ASSIGN: push(pending, ((Expr.Assign)expr).value); break;
+                    case Expr.BINARY:
+                        push(pending, ((Expr.Binary)expr).left);
+                        push(pending, ((Expr.Binary)expr).right);
+                        break;
+                    case Expr.GROUPING: push(pending, ((Expr.Grouping)expr).expression); break;
+                    case Expr.UNARY: push(pending, ((Expr.Unary)expr).right); break;
+                    case Expr.CONDITIONAL:
+                        push(pending, ((Expr.Conditional)expr).condition);
+                        push(pending, ((Expr.Conditional)expr).thenBranch);
+                        push(pending, ((Expr.Conditional)expr).elseBranch);
+                        break;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static void push(Deque<Expr> pending, Expr expr) {
+        if (expr != null) { pending.push(expr); }
+    }
+}
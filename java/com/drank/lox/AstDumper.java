@@ -0,0 +1,278 @@
+package com.drank.lox;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+// Writes statements and expressions to an Appendable as they are walked,
+// either as S-expressions in the AstPrinter format or as JSON. The walk
+// keeps its own stack of pending nodes and text, so neither the nesting
+// depth nor the size of the tree is limited by anything but the heap, and
+// nothing is buffered beyond what the Appendable itself buffers.
+//
+// Statements print as (; expr), (print expr) and (var name expr); in JSON
+// every node is an object with a "type" member naming its class.
+class AstDumper {
+    private final Appendable out;
+    private final boolean json;
+
+    // The nodes still to be written and the text between them, next on top.
+    private final Deque<Object> pending = new ArrayDeque<>();
+
+    AstDumper(Appendable out, boolean json) {
+        this.out = out;
+        this.json = json;
+    }
+
+    // Writes the statements one per line, as a JSON array when json is set.
+    void dump(List<Stmt> statements) throws IOException {
+        if (json) { out.append("["); }
+        for (int i = 0; i < statements.size(); i++) {
+            if (json) { out.append(i == 0 ? "\n" : ",\n"); }
+            dump(statements.get(i));
+            if (!json) { out.append("\n"); }
+        }
+        if (json) { out.append(statements.isEmpty() ? "]\n" : "\n]\n"); }
+    }
+
+    void dump(Stmt stmt) throws IOException {
+        drain(stmt);
+    }
+
+    void dump(Expr expr) throws IOException {
+        drain(expr);
+    }
+
+    private void drain(Object root) throws IOException {
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Object next = pending.pop();
+            if (next instanceof String) {
+                out.append((String)next);
+            } else if (next instanceof Expr) {
+                if (json) { jsonExpr((Expr)next); } else { sexprExpr((Expr)next); }
+            } else {
+                if (json) { jsonStmt((Stmt)next); } else { sexprStmt((Stmt)next); }
+            }
+        }
+    }
+
+    // Each node writes what comes before its first child straight away and
+    // pushes the rest in reverse, so it pops in order.
+
+    private void sexprExpr(Expr expr) throws IOException {
+        switch (expr.kind) {
+            case Expr.BINARY: {
+                Expr.Binary binary = (Expr.Binary)expr;
+                out.append("(").append(binary.operator.lexeme);
+                children(binary.left, binary.right);
+                break;
+            }
+            case Expr.GROUPING: {
+                out.append("(group");
+                children(((Expr.Grouping)expr).expression);
+                break;
+            }
+            case Expr.LITERAL: {
+                Object value = ((Expr.Literal)expr).value;
+                out.append(value == null ? "nil" : value.toString());
+                break;
+            }
+            case Expr.UNARY: {
+                Expr.Unary unary = (Expr.Unary)expr;
+                out.append("(").append(unary.operator.lexeme);
+                children(unary.right);
+                break;
+            }
+            case Expr.CONDITIONAL: {
+                Expr.Conditional conditional = (Expr.Conditional)expr;
+                out.append("(conditional");
+                children(conditional.condition, conditional.thenBranch, conditional.elseBranch);
+                break;
+            }
+            case Expr.VARIABLE: {
+                out.append("(").append(((Expr.Variable)expr).name.lexeme).append(")");
+                break;
+            }
+            case Expr.ASSIGN: {
+                Expr.Assign assign = (Expr.Assign)expr;
+                out.append("(").append(assign.name.lexeme);
+                children(assign.value);
+                break;
+            }
+            default:
+                throw new AssertionError("Unknown expression kind " + expr.kind);
+        }
+    }
+
+    private void sexprStmt(Stmt stmt) throws IOException {
+        switch (stmt.kind) {
+            case Stmt.EXPRESSION: {
+                out.append("(;");
+                children(((Stmt.Expression)stmt).expression);
+                break;
+            }
+            case Stmt.PRINT: {
+                out.append("(print");
+                children(((Stmt.Print)stmt).expression);
+                break;
+            }
+            case Stmt.VAR: {
+                Stmt.Var var = (Stmt.Var)stmt;
+                out.append("(var ").append(var.name.lexeme);
+                if (var.initializer == null) {
+                    out.append(")");
+                } else {
+                    children(var.initializer);
+                }
+                break;
+            }
+            default:
+                throw new AssertionError("Unknown statement kind " + stmt.kind);
+        }
+    }
+
+    // Schedules " child" for each child and then the closing parenthesis.
+    private void children(Expr... exprs) {
+        pending.push(")");
+        for (int i = exprs.length - 1; i >= 0; i--) {
+            pending.push(exprs[i]);
+            pending.push(" ");
+        }
+    }
+
+    private void jsonExpr(Expr expr) throws IOException {
+        switch (expr.kind) {
+            case Expr.BINARY: {
+                Expr.Binary binary = (Expr.Binary)expr;
+                out.append("{\"type\":\"Binary\",\"operator\":");
+                quote(binary.operator.lexeme);
+                member(",\"left\":", binary.left, ",\"right\":", binary.right);
+                break;
+            }
+            case Expr.GROUPING: {
+                out.append("{\"type\":\"Grouping\"");
+                member(",\"expression\":", ((Expr.Grouping)expr).expression);
+                break;
+            }
+            case Expr.LITERAL: {
+                out.append("{\"type\":\"Literal\",\"value\":");
+                value(((Expr.Literal)expr).value);
+                out.append("}");
+                break;
+            }
+            case Expr.UNARY: {
+                Expr.Unary unary = (Expr.Unary)expr;
+                out.append("{\"type\":\"Unary\",\"operator\":");
+                quote(unary.operator.lexeme);
+                member(",\"right\":", unary.right);
+                break;
+            }
+            case Expr.CONDITIONAL: {
+                Expr.Conditional conditional = (Expr.Conditional)expr;
+                out.append("{\"type\":\"Conditional\"");
+                pending.push("}");
+                pending.push(conditional.elseBranch);
+                pending.push(",\"elseBranch\":");
+                pending.push(conditional.thenBranch);
+                pending.push(",\"thenBranch\":");
+                pending.push(conditional.condition);
+                pending.push(",\"condition\":");
+                break;
+            }
+            case Expr.VARIABLE: {
+                out.append("{\"type\":\"Variable\",\"name\":");
+                quote(((Expr.Variable)expr).name.lexeme);
+                out.append("}");
+                break;
+            }
+            case Expr.ASSIGN: {
+                Expr.Assign assign = (Expr.Assign)expr;
+                out.append("{\"type\":\"Assign\",\"name\":");
+                quote(assign.name.lexeme);
+                member(",\"value\":", assign.value);
+                break;
+            }
+            default:
+                throw new AssertionError("Unknown expression kind " + expr.kind);
+        }
+    }
+
+    private void jsonStmt(Stmt stmt) throws IOException {
+        switch (stmt.kind) {
+            case Stmt.EXPRESSION: {
+                out.append("{\"type\":\"Expression\"");
+                member(",\"expression\":", ((Stmt.Expression)stmt).expression);
+                break;
+            }
+            case Stmt.PRINT: {
+                out.append("{\"type\":\"Print\"");
+                member(",\"expression\":", ((Stmt.Print)stmt).expression);
+                break;
+            }
+            case Stmt.VAR: {
+                Stmt.Var var = (Stmt.Var)stmt;
+                out.append("{\"type\":\"Var\",\"name\":");
+                quote(var.name.lexeme);
+                if (var.initializer == null) {
+                    out.append(",\"initializer\":null}");
+                } else {
+                    member(",\"initializer\":", var.initializer);
+                }
+                break;
+            }
+            default:
+                throw new AssertionError("Unknown statement kind " + stmt.kind);
+        }
+    }
+
+    // Schedules the members holding child nodes, each after its ,"name":
+    // prefix, and then the closing brace.
+    private void member(String prefix, Expr expr) {
+        pending.push("}");
+        pending.push(expr);
+        pending.push(prefix);
+    }
+
+    private void member(String firstPrefix, Expr first, String secondPrefix, Expr second) {
+        pending.push("}");
+        pending.push(second);
+        pending.push(secondPrefix);
+        pending.push(first);
+        pending.push(firstPrefix);
+    }
+
+    private void value(Object value) throws IOException {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof String) {
+            quote((String)value);
+        } else if (value instanceof Double && !Double.isFinite((Double)value)) {
+            quote(value.toString());
+        } else {
+            out.append(value.toString());
+        }
+    }
+
+    private void quote(String text) throws IOException {
+        out.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int)c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
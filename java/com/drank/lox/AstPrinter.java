@@ -1,70 +1,63 @@
 package com.drank.lox;
 
-class AstPrinter implements Expr.Visitor<String> {
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+// Prints syntax trees as S-expressions, or as JSON with --json:
+//
+//   astprinter [--json] [script]
+//
+// reads the script, or standard input without one, and dumps its
+// statements one per line. Parsing is stack safe and the output is
+// streamed, so large generated scripts dump without running out of stack
+// or memory.
+public class AstPrinter {
     String print(Expr expr) {
-        return expr.accept(this);
-    }
-
-    @Override
-    public String visitBinaryExpr(Expr.Binary expr) {
-        return parenthesize(expr.operator.lexeme,
-                            expr.left, expr.right);
-    }
-
-    @Override
-    public String visitGroupingExpr(Expr.Grouping expr) {
-        return parenthesize("group", expr.expression);
-    }
-
-    @Override
-    public String visitLiteralExpr(Expr.Literal expr) {
-        if (expr.value == null) { return "nil"; }
-        return expr.value.toString();
-    }
-
-    @Override
-    public String visitUnaryExpr(Expr.Unary expr) {
-        return parenthesize(expr.operator.lexeme, expr.right);
-    }
-
-    @Override
-    public String visitConditionalExpr(Expr.Conditional expr) {
-        return parenthesize("conditional", expr.condition, expr.thenBranch, expr.elseBranch);
-    }
-
-    @Override
-    public String visitVariableExpr(Expr.Variable expr) {
-        return parenthesize(expr.name.lexeme);
-    }
-
-    @Override
-    public String visitAssignExpr(Expr.Assign expr) {
-        return parenthesize(expr.name.lexeme, expr.value);
-    }
-
-    private String parenthesize(String name, Expr... exprs) {
         StringBuilder builder = new StringBuilder();
-
-        builder.append("(").append(name);
-        for (Expr expr : exprs) {
-            builder.append(" ");
-            builder.append(expr.accept(this));
+        try {
+            new AstDumper(builder, false).dump(expr);
+        } catch (IOException error) {
+            // a StringBuilder never throws
+            throw new UncheckedIOException(error);
         }
-        builder.append(")");
-
         return builder.toString();
     }
 
-    /*
-    public static void main(String[] args) {
-        Expr expression = new Expr.Binary(
-                new Expr.Unary(
-                    new Token(TokenType.MINUS, "-", null, 1),
-                    new Expr.Literal(123)),
-                new Token(TokenType.STAR, "*", null, 1),
-                new Expr.Grouping(
-                    new Expr.Literal(45.67)));
+    public static void main(String[] args) throws IOException {
+        boolean json = false;
+        int arg = 0;
+        if (arg < args.length && args[arg].equals("--json")) {
+            json = true;
+            arg++;
+        }
+        if (args.length - arg > 1) {
+            System.out.println("Usage: astprinter [--json] [script]");
+            System.exit(64);
+        }
+
+        byte[] bytes;
+        if (arg < args.length) {
+            bytes = Files.readAllBytes(Paths.get(args[arg]));
+        } else {
+            InputStream input = System.in;
+            bytes = input.readAllBytes();
+        }
+
+        Session session = Lox.session();
+        List<Token> tokens = new Scanner(new String(bytes, Charset.defaultCharset())).scanTokens();
+        List<Stmt> statements = new Parser(tokens, true).parse();
+        if (session.hadError) { System.exit(65); }
 
-        System.out.println(new AstPrinter().print(expression));
-    }*/
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, Charset.defaultCharset()));
+        new AstDumper(out, json).dump(statements);
+        out.flush();
+    }
 }
@@ -0,0 +1,147 @@
+package com.drank.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Runs many scripts in one JVM. Every script gets its own Session, so
+// globals, output and error state are never shared, and scripts may run
+// on several threads at once. Output of each script is buffered and
+// written in the order the scripts were given, followed by a result line
+// on stderr:
+//
+//   [batch] path: exit 0 (1.23 ms)
+//
+// The batch exits with the highest exit code of any script.
+class Batch {
+    private final int jobs;
+
+    private static class Result {
+        final Path script;
+        final int exitCode;
+        final long nanos;
+        final byte[] out;
+        final byte[] err;
+
+        Result(Path script, int exitCode, long nanos, byte[] out, byte[] err) {
+            this.script = script;
+            this.exitCode = exitCode;
+            this.nanos = nanos;
+            this.out = out;
+            this.err = err;
+        }
+    }
+
+    Batch(int jobs) {
+        this.jobs = jobs;
+    }
+
+    // Expands arguments into script paths. A directory stands for every
+    // .lox file below it, in path order, and @file for the paths listed in
+    // file, one per line, relative to the file's directory. Blank lines and
+    // lines starting with # in a manifest are skipped.
+    static List<Path> collect(List<String> args) throws IOException {
+        List<Path> scripts = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("@")) {
+                Path manifest = Paths.get(arg.substring(1));
+                Path dir = manifest.toAbsolutePath().getParent();
+                for (String line : Files.readAllLines(manifest, Charset.defaultCharset())) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) { continue; }
+                    scripts.add(dir.resolve(line));
+                }
+            } else if (Files.isDirectory(Paths.get(arg))) {
+                try (Stream<Path> files = Files.walk(Paths.get(arg))) {
+                    scripts.addAll(files.filter(path -> path.toString().endsWith(".lox"))
+                                        .filter(Files::isRegularFile)
+                                        .sorted()
+                                        .collect(Collectors.toList()));
+                }
+            } else {
+                scripts.add(Paths.get(arg));
+            }
+        }
+        return scripts;
+    }
+
+    int run(List<Path> scripts) {
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        long start = System.nanoTime();
+        int exitCode = 0;
+        int failed = 0;
+
+        try {
+            List<Future<Result>> results = new ArrayList<>();
+            for (Path script : scripts) {
+                results.add(executor.submit(() -> runScript(script)));
+            }
+
+            for (Future<Result> future : results) {
+                Result result = await(future);
+                System.out.write(result.out, 0, result.out.length);
+                System.out.flush();
+                System.err.write(result.err, 0, result.err.length);
+                System.err.printf("[batch] %s: exit %d (%.2f ms)%n",
+                                  result.script, result.exitCode, result.nanos / 1e6);
+
+                if (result.exitCode != 0) { failed++; }
+                exitCode = Math.max(exitCode, result.exitCode);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        System.err.printf("[batch] %d scripts, %d failed, %d jobs (%.2f ms)%n",
+                          scripts.size(), failed, jobs, (System.nanoTime() - start) / 1e6);
+        return exitCode;
+    }
+
+    private static Result await(Future<Result> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static Result runScript(Path script) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        PrintStream errStream = new PrintStream(err, true);
+        long start = System.nanoTime();
+        int exitCode;
+
+        try {
+            Session session = new Session(new PrintStream(out, true), errStream);
+            byte[] bytes = Files.readAllBytes(script);
+            session.run(new String(bytes, Charset.defaultCharset()));
+            exitCode = session.exitCode();
+        } catch (IOException e) {
+            errStream.println("Could not read script: " + e.getMessage());
+            exitCode = 66;
+        } catch (RuntimeException | StackOverflowError e) {
+            // keep one broken script from taking the rest of the batch down
+            errStream.println("Internal error: " + e);
+            exitCode = 70;
+        }
+
+        return new Result(script, exitCode, System.nanoTime() - start,
+                          out.toByteArray(), err.toByteArray());
+    }
+}
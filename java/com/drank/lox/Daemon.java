@@ -0,0 +1,162 @@
+package com.drank.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Keeps a warmed up interpreter process resident and runs scripts sent to
+// it over a Unix domain socket, each in its own Session.
+//
+// A client writes the script source and shuts down its side of the
+// connection for writing. The daemon streams back one line per line of
+// output while the script runs, prefixed with the stream it went to, and
+// finishes with the exit code before closing the connection:
+//
+//   1 <stdout line>
+//   2 <stderr line>
+//   x <exit code>
+//
+// The jlox wrapper speaks this protocol through socat when JLOX_SOCKET
+// names a running daemon's socket.
+class Daemon {
+    private final Path socket;
+    private final ExecutorService executor;
+
+    Daemon(Path socket, int jobs) {
+        this.socket = socket;
+        this.executor = Executors.newFixedThreadPool(jobs);
+    }
+
+    void serve() throws IOException {
+        Files.deleteIfExists(socket);
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(socket);
+                } catch (IOException e) {
+                    // nothing left to do on the way out
+                }
+            }));
+            System.err.println("jlox daemon listening on " + socket);
+
+            for (;;) {
+                SocketChannel client = server.accept();
+                executor.execute(() -> serve(client));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void serve(SocketChannel client) {
+        try (SocketChannel channel = client) {
+            InputStream in = Channels.newInputStream(channel);
+            String source = new String(in.readAllBytes(), Charset.defaultCharset());
+
+            Reply reply = new Reply(channel);
+            LineStream out = new LineStream(reply, '1');
+            LineStream err = new LineStream(reply, '2');
+            Session session = new Session(new PrintStream(out, true), new PrintStream(err, true));
+
+            int exitCode;
+            try {
+                session.run(source);
+                exitCode = session.exitCode();
+            } catch (RuntimeException | StackOverflowError e) {
+                session.err.println("Internal error: " + e);
+                exitCode = 70;
+            }
+
+            out.finish();
+            err.finish();
+            byte[] code = Integer.toString(exitCode).getBytes(StandardCharsets.US_ASCII);
+            reply.line('x', code, 0, code.length);
+        } catch (IOException e) {
+            // the client went away, there is no one left to report to
+        }
+    }
+
+    // Writes whole framed lines to the client. Both of a session's streams
+    // share one so their lines are never interleaved mid line.
+    private static class Reply {
+        private final SocketChannel channel;
+
+        Reply(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        synchronized void line(char stream, byte[] bytes, int offset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length + 3);
+            buffer.put((byte)stream).put((byte)' ').put(bytes, offset, length).put((byte)'\n');
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    // Collects bytes written by a PrintStream and sends each complete line.
+    private static class LineStream extends OutputStream {
+        private final Reply reply;
+        private final char stream;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        LineStream(Reply reply, char stream) {
+            this.reply = reply;
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (b == '\n') {
+                sendLine();
+            } else {
+                line.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            int end = offset + length;
+            int start = offset;
+            for (int i = offset; i < end; i++) {
+                if (bytes[i] != '\n') { continue; }
+
+                if (line.size() == 0) {
+                    reply.line(stream, bytes, start, i - start);
+                } else {
+                    line.write(bytes, start, i - start);
+                    sendLine();
+                }
+                start = i + 1;
+            }
+            line.write(bytes, start, end - start);
+        }
+
+        // Sends what is left of a last line without a newline.
+        void finish() throws IOException {
+            if (line.size() > 0) { sendLine(); }
+        }
+
+        private void sendLine() throws IOException {
+            reply.line(stream, line.toByteArray(), 0, line.size());
+            line.reset();
+        }
+    }
+}
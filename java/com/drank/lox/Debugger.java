@@ -0,0 +1,175 @@
+package com.drank.lox;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+// Pauses a script before statements starting on a breakpoint line, and
+// single steps it a statement at a time.
+//
+// The interpreter checks nothing for it. instrument() wraps only the
+// statements on breakpoint lines in a Stmt.Breakpoint, a statement kind the
+// Interpreter dispatches to like the others, which calls reached() before
+// running the statement it wraps. With no breakpoints the statements run
+// exactly as parsed. Breakpoints set or cleared while paused, and steps,
+// swap wrappers in and out of the statement list being run, which the
+// Interpreter walks in order, so each is applied to the statements yet to
+// run.
+//
+// While paused, commands are read from the given reader:
+//
+//   step, s             run the next statement and pause again
+//   continue, c         run on to the next breakpoint
+//   break N, b N        set a breakpoint on line N
+//   clear N             clear the breakpoint on line N
+//   print NAME, p NAME  print a global
+//
+// The end of the commands clears every breakpoint and lets the script run
+// to the end.
+class Debugger {
+    private final BufferedReader commands;
+    private final PrintStream out;
+    private final Set<Integer> breakpoints = new TreeSet<>();
+
+    // the statements being run, null when none have been instrumented
+    private List<Stmt> program = null;
+
+    // Set by a step, so the next statement pauses even if it is the first
+    // one of the next program, like the next line in the REPL.
+    private boolean stepping = false;
+
+    Debugger(BufferedReader commands, PrintStream out) {
+        this.commands = commands;
+        this.out = out;
+    }
+
+    void setBreakpoint(int line) {
+        breakpoints.add(line);
+        if (program == null) { return; }
+        for (int i = 0; i < program.size(); i++) {
+            if (program.get(i).line == line) { wrap(i); }
+        }
+    }
+
+    void clearBreakpoint(int line) {
+        breakpoints.remove(line);
+        if (program == null) { return; }
+        for (int i = 0; i < program.size(); i++) {
+            if (program.get(i).line == line) { unwrap(i); }
+        }
+    }
+
+    // Returns the statements to run in place of the given ones: the same
+    // list if none can pause, or a copy with those that can wrapped.
+    List<Stmt> instrument(List<Stmt> statements) {
+        program = null;
+        if (breakpoints.isEmpty() && !stepping) { return statements; }
+
+        program = new ArrayList<>(statements);
+        for (int i = 0; i < program.size(); i++) {
+            if ((i == 0 && stepping) || breakpoints.contains(program.get(i).line)) { wrap(i); }
+        }
+        return program;
+    }
+
+    // Called by the Interpreter before it runs the wrapped statement.
+    void reached(Stmt.Breakpoint breakpoint, Interpreter interpreter) {
+        if (!stepping && !breakpoints.contains(breakpoint.line)) { return; }
+        stepping = false;
+
+        out.println("[debug] line " + breakpoint.line + ": " + describe(breakpoint.statement));
+        for (;;) {
+            out.print("[debug] ");
+            out.flush();
+
+            String command;
+            try {
+                command = commands.readLine();
+            } catch (IOException error) {
+                throw new UncheckedIOException(error);
+            }
+            if (command == null) {
+                for (int line : new ArrayList<>(breakpoints)) { clearBreakpoint(line); }
+                return;
+            }
+
+            String[] words = command.trim().split("\\s+");
+            switch (words[0]) {
+                case "s":
+                case "step":
+                    stepping = true;
+                    if (program != null && breakpoint.index + 1 < program.size()) {
+                        wrap(breakpoint.index + 1);
+                    }
+                    return;
+                case "c":
+                case "continue":
+                    return;
+                case "b":
+                case "break":
+                    if (words.length == 2 && isLine(words[1])) {
+                        setBreakpoint(Integer.parseInt(words[1]));
+                        out.println("[debug] breakpoints " + breakpoints);
+                        continue;
+                    }
+                    break;
+                case "clear":
+                    if (words.length == 2 && isLine(words[1])) {
+                        clearBreakpoint(Integer.parseInt(words[1]));
+                        out.println("[debug] breakpoints " + breakpoints);
+                        continue;
+                    }
+                    break;
+                case "p":
+                case "print":
+                    if (words.length == 2) {
+                        Token name = new Token(TokenType.IDENTIFIER, words[1], null, breakpoint.line);
+                        try {
+                            out.println(interpreter.stringify(interpreter.lookup(name)));
+                        } catch (RuntimeError error) {
+                            out.println(error.getMessage());
+                        }
+                        continue;
+                    }
+                    break;
+            }
+            out.println("Commands: step, continue, break N, clear N, print NAME.");
+        }
+    }
+
+    private void wrap(int index) {
+        Stmt statement = program.get(index);
+        if (statement.kind == Stmt.BREAKPOINT) { return; }
+
+        Stmt.Breakpoint breakpoint = new Stmt.Breakpoint(statement, index);
+        breakpoint.line = statement.line;
+        program.set(index, breakpoint);
+    }
+
+    private void unwrap(int index) {
+        Stmt statement = program.get(index);
+        if (statement.kind == Stmt.BREAKPOINT) {
+            program.set(index, ((Stmt.Breakpoint)statement).statement);
+        }
+    }
+
+    private static boolean isLine(String word) {
+        return word.matches("[0-9]{1,9}");
+    }
+
+    private static String describe(Stmt statement) {
+        StringBuilder builder = new StringBuilder();
+        try {
+            new AstDumper(builder, false).dump(statement);
+        } catch (IOException error) {
+            // a StringBuilder never throws
+            throw new UncheckedIOException(error);
+        }
+        return builder.toString();
+    }
+}
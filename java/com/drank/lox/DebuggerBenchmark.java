@@ -0,0 +1,82 @@
+package com.drank.lox;
+
+import java.io.BufferedReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.List;
+
+// Compares the interpreter's throughput with no debugger against a
+// debugger attached but idle, one that has paused the script once and had
+// its breakpoint cleared, the same interpreter with that debugger detached
+// again, and one breakpoint hit on every run.
+//
+//   java -cp build/java com.drank.lox.DebuggerBenchmark [statements] [runs]
+//
+// The generated script has the given number of statements (100000 by
+// default). The first runs warm up the JIT and are not counted, the rest
+// are averaged.
+public class DebuggerBenchmark {
+    private static final PrintStream NOWHERE = new PrintStream(OutputStream.nullOutputStream());
+
+    public static void main(String[] args) {
+        int statements = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        List<Stmt> program = new Parser(new Scanner(generate(statements)).scanTokens()).parse();
+
+        double plain = measure(program, null, runs);
+        report("plain", plain, plain);
+
+        Debugger idle = debugger("");
+        report("attached, idle", measure(idle.instrument(program), idle, runs), plain);
+
+        Debugger used = debugger("clear 2\ncontinue\n");
+        used.setBreakpoint(2);
+        List<Stmt> cleared = used.instrument(program);
+        interpreter(used).interpret(cleared);
+        report("attached, after a pause", measure(cleared, used, runs), plain);
+        report("detached", measure(cleared, null, runs), plain);
+
+        Debugger active = debugger("continue\n".repeat(2 * runs));
+        active.setBreakpoint(2);
+        report("one breakpoint", measure(active.instrument(program), active, runs), plain);
+    }
+
+    private static void report(String mode, double milliseconds, double plain) {
+        System.out.printf("%-24s %8.2f ms   %5.2fx plain%n", mode, milliseconds, milliseconds / plain);
+    }
+
+    private static Debugger debugger(String commands) {
+        return new Debugger(new BufferedReader(new StringReader(commands)), NOWHERE);
+    }
+
+    private static Interpreter interpreter(Debugger debugger) {
+        Interpreter interpreter = new Interpreter(false, NOWHERE, new Accounting(NOWHERE));
+        interpreter.debugger = debugger;
+        return interpreter;
+    }
+
+    // Average milliseconds to run the program, after as many warm up runs.
+    private static double measure(List<Stmt> program, Debugger debugger, int runs) {
+        Interpreter interpreter = interpreter(debugger);
+        long total = 0;
+        for (int i = 0; i < 2 * runs; i++) {
+            long start = System.nanoTime();
+            interpreter.interpret(program);
+            long elapsed = System.nanoTime() - start;
+            if (i >= runs) { total += elapsed; }
+        }
+        return total / 1e6 / runs;
+    }
+
+    // Declarations each computing from the one before, a statement a line.
+    private static String generate(int statements) {
+        StringBuilder source = new StringBuilder("var g0 = 0;\n");
+        for (int i = 1; i < statements; i++) {
+            source.append("var g").append(i).append(" = (g").append(i - 1)
+                  .append(" + ").append(i).append(") / 2 - ").append(i % 7)
+                  .append(" / 3;\n");
+        }
+        return source.toString();
+    }
+}
@@ -2,7 +2,15 @@ package com.drank.lox;
 
 import java.util.List;
 
-abstract class Expr {
+abstract sealed class Expr {
+    static final int ASSIGN = 0;
+    static final int BINARY = 1;
+    static final int GROUPING = 2;
+    static final int LITERAL = 3;
+    static final int UNARY = 4;
+    static final int CONDITIONAL = 5;
+    static final int VARIABLE = 6;
+
     interface Visitor<R> {
         R visitAssignExpr(Assign expr);
         R visitBinaryExpr(Binary expr);
@@ -13,8 +21,18 @@ abstract class Expr {
         R visitVariableExpr(Variable expr);
     }
 
-    static class Assign extends Expr {
+    final int kind;
+
+    // Result type proven by TypeInference, NOT_ANALYZED until it runs.
+    int type = TypeInference.NOT_ANALYZED;
+
+    private Expr(int kind) {
+        this.kind = kind;
+    }
+
+    static final class Assign extends Expr {
         Assign(Token name, Expr value) {
+            super(ASSIGN);
             this.name = name;
             this.value = value;
         }
@@ -28,8 +46,9 @@ abstract class Expr {
         final Expr value;
     }
 
-    static class Binary extends Expr {
+    static final class Binary extends Expr {
         Binary(Expr left, Token operator, Expr right) {
+            super(BINARY);
             this.left = left;
             this.operator = operator;
             this.right = right;
@@ -45,8 +64,9 @@ abstract class Expr {
         final Expr right;
     }
 
-    static class Grouping extends Expr {
+    static final class Grouping extends Expr {
         Grouping(Expr expression) {
+            super(GROUPING);
             this.expression = expression;
         }
 
@@ -58,8 +78,9 @@ abstract class Expr {
         final Expr expression;
     }
 
-    static class Literal extends Expr {
+    static final class Literal extends Expr {
         Literal(Object value) {
+            super(LITERAL);
             this.value = value;
         }
 
@@ -71,8 +92,9 @@ abstract class Expr {
         final Object value;
     }
 
-    static class Unary extends Expr {
+    static final class Unary extends Expr {
         Unary(Token operator, Expr right) {
+            super(UNARY);
             this.operator = operator;
             this.right = right;
         }
@@ -86,8 +108,9 @@ abstract class Expr {
         final Expr right;
     }
 
-    static class Conditional extends Expr {
+    static final class Conditional extends Expr {
         Conditional(Expr condition, Expr thenBranch, Expr elseBranch) {
+            super(CONDITIONAL);
             this.condition = condition;
             this.thenBranch = thenBranch;
             this.elseBranch = elseBranch;
@@ -103,8 +126,9 @@ abstract class Expr {
         final Expr elseBranch;
     }
 
-    static class Variable extends Expr {
+    static final class Variable extends Expr {
         Variable(Token name) {
+            super(VARIABLE);
             this.name = name;
         }
 
@@ -117,4 +141,20 @@ abstract class Expr {
     }
 
     abstract <R> R accept(Visitor<R> visitor);
+
+    // Calls the visit method for the kind of expr with a single switch
+    // instead of a virtual accept call followed by the visit call.
+    static <R> R dispatch(Expr expr, Visitor<R> visitor) {
+        switch (expr.kind) {
+            case ASSIGN: return visitor.visitAssignExpr((Assign)expr);
+            case BINARY: return visitor.visitBinaryExpr((Binary)expr);
+            case GROUPING: return visitor.visitGroupingExpr((Grouping)expr);
+            case LITERAL: return visitor.visitLiteralExpr((Literal)expr);
+            case UNARY: return visitor.visitUnaryExpr((Unary)expr);
+            case CONDITIONAL: return visitor.visitConditionalExpr((Conditional)expr);
+            case VARIABLE: return visitor.visitVariableExpr((Variable)expr);
+        }
+
+        throw new AssertionError("Unknown Expr kind " + expr.kind);
+    }
 }
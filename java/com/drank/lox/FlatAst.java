@@ -0,0 +1,250 @@
+package com.drank.lox;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A program encoded into flat arrays instead of a graph of Expr and Stmt
+// objects. Every node takes NODE_SIZE consecutive ints in nodes:
+//
+//   kind, a, b, c
+//
+// and is referred to by the offset of its kind slot. Operands are offsets
+// of child nodes, indices into constants, or indices into tokens. Tokens
+// are shared between all nodes with the same type and lexeme, so only one
+// Token per distinct name or operator is kept alive, and the line of each
+// node with a token is kept in lines instead, for its runtime errors.
+// Groupings do not change evaluation and are dropped.
+final class FlatAst {
+    static final int NODE_SIZE = 4;
+
+    // constant slot holding nil
+    static final int NIL = 0;
+
+    // expressions
+    static final int LITERAL = 0;      // a: constant
+    static final int VARIABLE = 1;     // a: name token
+    static final int ASSIGN = 2;       // a: name token, b: value
+    static final int BINARY = 3;       // a: left, b: operator token, c: right
+    static final int UNARY = 4;        // a: operator token, b: right
+    static final int CONDITIONAL = 5;  // a: condition, b: then, c: else
+
+    // statements
+    static final int EXPRESSION = 6;   // a: expression
+    static final int PRINT = 7;        // a: expression
+    static final int VAR = 8;          // a: name token, b: initializer or -1
+
+    final int[] nodes;
+    // by node offset / NODE_SIZE, 0 for nodes without a token
+    final int[] lines;
+    final Object[] constants;
+    final Token[] tokens;
+    final int[] statements;
+
+    private FlatAst(int[] nodes, int[] lines, Object[] constants, Token[] tokens, int[] statements) {
+        this.nodes = nodes;
+        this.lines = lines;
+        this.constants = constants;
+        this.tokens = tokens;
+        this.statements = statements;
+    }
+
+    static FlatAst encode(List<Stmt> statements) {
+        Encoder encoder = new Encoder();
+        for (Stmt statement : statements) {
+            encoder.add(statement);
+        }
+        return encoder.finish();
+    }
+
+    int nodeCount() {
+        return nodes.length / NODE_SIZE;
+    }
+
+    // Encodes statements one at a time, so they can be let go as soon as
+    // they are added.
+    static final class Encoder {
+        private int[] nodes = new int[256];
+        private int[] lines = new int[256 / NODE_SIZE];
+        private int size = 0;
+
+        private int[] roots = new int[64];
+        private int rootCount = 0;
+
+        // slot NIL is left null
+        private Object[] constants = new Object[16];
+        private int constantCount = 1;
+        private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+        private Token[] tokens = new Token[16];
+        private int tokenCount = 0;
+        private final Map<String, Integer> tokenIndex = new HashMap<>();
+
+        // offsets of the encoded operands of the nodes being encoded
+        private final Deque<Integer> offsets = new ArrayDeque<>();
+
+        void add(Stmt statement) {
+            int root = statement(statement);
+            if (rootCount == roots.length) {
+                roots = Arrays.copyOf(roots, roots.length * 2);
+            }
+            roots[rootCount++] = root;
+        }
+
+        FlatAst finish() {
+            return new FlatAst(Arrays.copyOf(nodes, size),
+                               Arrays.copyOf(lines, size / NODE_SIZE),
+                               Arrays.copyOf(constants, constantCount),
+                               Arrays.copyOf(tokens, tokenCount),
+                               Arrays.copyOf(roots, rootCount));
+        }
+
+        private int node(int kind, int a, int b, int c) {
+            return node(kind, 0, a, b, c);
+        }
+
+        private int node(int kind, int line, int a, int b, int c) {
+            if (size + NODE_SIZE > nodes.length) {
+                nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                lines = Arrays.copyOf(lines, lines.length * 2);
+            }
+            int offset = size;
+            lines[size / NODE_SIZE] = line;
+            nodes[size++] = kind;
+            nodes[size++] = a;
+            nodes[size++] = b;
+            nodes[size++] = c;
+            return offset;
+        }
+
+        private int constant(Object value) {
+            if (value == null) { return NIL; }
+
+            Integer index = constantIndex.get(value);
+            if (index != null) { return index; }
+
+            if (constantCount == constants.length) {
+                constants = Arrays.copyOf(constants, constants.length * 2);
+            }
+            constantIndex.put(value, constantCount);
+            constants[constantCount] = value;
+            return constantCount++;
+        }
+
+        private int token(Token token) {
+            String key = token.type + " " + token.lexeme;
+            Integer index = tokenIndex.get(key);
+            if (index != null) { return index; }
+
+            if (tokenCount == tokens.length) {
+                tokens = Arrays.copyOf(tokens, tokens.length * 2);
+            }
+            tokenIndex.put(key, tokenCount);
+            tokens[tokenCount] = token;
+            return tokenCount++;
+        }
+
+        private int statement(Stmt stmt) {
+            switch (stmt.kind) {
+                case Stmt.EXPRESSION:
+                    return node(EXPRESSION, expression(((Stmt.Expression)stmt).expression), 0, 0);
+                case Stmt.PRINT:
+                    return node(PRINT, expression(((Stmt.Print)stmt).expression), 0, 0);
+                case Stmt.VAR: {
+                    Stmt.Var var = (Stmt.Var)stmt;
+                    int initializer = var.initializer == null ? -1 : expression(var.initializer);
+                    return node(VAR, var.name.line, token(var.name), initializer, 0);
+                }
+                default:
+                    throw new AssertionError("Breakpoints are only run by the tree interpreter.");
+            }
+        }
+
+        // Encodes the operands of a node before the node itself, with an
+        // explicit stack so trees from the stack safe parser do not
+        // overflow, and returns the offset of root.
+        private int expression(Expr root) {
+            Deque<Expr> pending = new ArrayDeque<>();
+            Deque<Boolean> combine = new ArrayDeque<>();
+            pending.push(root);
+            combine.push(false);
+
+            while (!pending.isEmpty()) {
+                Expr expr = pending.pop();
+                if (combine.pop()) {
+                    offsets.push(combine(expr));
+                    continue;
+                }
+
+                switch (expr.kind) {
+                    case Expr.LITERAL:
+                        offsets.push(node(LITERAL, constant(((Expr.Literal)expr).value), 0, 0));
+                        break;
+                    case Expr.VARIABLE: {
+                        Token name = ((Expr.Variable)expr).name;
+                        offsets.push(node(VARIABLE, name.line, token(name), 0, 0));
+                        break;
+                    }
+                    case Expr.GROUPING:
+                        // leaves the offset of its expression as its own
+                        pending.push(((Expr.Grouping)expr).expression);
+                        combine.push(false);
+                        break;
+                    default:
+                        pending.push(expr);
+                        combine.push(true);
+                        for (Expr operand : operands(expr)) {
+                            pending.push(operand);
+                            combine.push(false);
+                        }
+                }
+            }
+            return offsets.pop();
+        }
+
+        // The operands of expr, last first, so they are encoded in order.
+        private static Expr[] operands(Expr expr) {
+            switch (expr.kind) {
+                case Expr.ASSIGN:
+                    return new Expr[] { ((Expr.Assign)expr).value };
+                case Expr.BINARY:
+                    return new Expr[] { ((Expr.Binary)expr).right, ((Expr.Binary)expr).left };
+                case Expr.UNARY:
+                    return new Expr[] { ((Expr.Unary)expr).right };
+                default: {
+                    Expr.Conditional conditional = (Expr.Conditional)expr;
+                    return new Expr[] { conditional.elseBranch, conditional.thenBranch, conditional.condition };
+                }
+            }
+        }
+
+        // Encodes a node whose operands' offsets are on top of offsets.
+        private int combine(Expr expr) {
+            switch (expr.kind) {
+                case Expr.ASSIGN: {
+                    Token name = ((Expr.Assign)expr).name;
+                    return node(ASSIGN, name.line, token(name), offsets.pop(), 0);
+                }
+                case Expr.BINARY: {
+                    Token operator = ((Expr.Binary)expr).operator;
+                    int right = offsets.pop();
+                    int left = offsets.pop();
+                    return node(BINARY, operator.line, left, token(operator), right);
+                }
+                case Expr.UNARY: {
+                    Token operator = ((Expr.Unary)expr).operator;
+                    return node(UNARY, operator.line, token(operator), offsets.pop(), 0);
+                }
+                default: {
+                    int elseBranch = offsets.pop();
+                    int thenBranch = offsets.pop();
+                    int condition = offsets.pop();
+                    return node(CONDITIONAL, condition, thenBranch, elseBranch);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.drank.lox;
+
+import java.util.Arrays;
+
+// Executes a FlatAst directly, without rebuilding Expr or Stmt objects.
+// Values, variables and operator semantics are shared with the tree
+// walking Interpreter it is created with, and so is its stack safe mode.
+class FlatInterpreter {
+    private final Interpreter interpreter;
+    private int[] nodes;
+    private int[] lines;
+    private Object[] constants;
+    private Token[] tokens;
+
+    FlatInterpreter(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    // Returns whether the program ran without a runtime error.
+    boolean interpret(FlatAst program) {
+        nodes = program.nodes;
+        lines = program.lines;
+        constants = program.constants;
+        tokens = program.tokens;
+
+        try {
+            for (int statement : program.statements) {
+                execute(statement);
+            }
+            return true;
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+            return false;
+        }
+    }
+
+    private void execute(int node) {
+        switch (nodes[node]) {
+            case FlatAst.EXPRESSION:
+                evaluateRoot(nodes[node + 1]);
+                break;
+            case FlatAst.PRINT: {
+                Object value = evaluateRoot(nodes[node + 1]);
+                interpreter.print(value);
+                break;
+            }
+            case FlatAst.VAR: {
+                Object value = null;
+                if (nodes[node + 2] != -1) {
+                    value = evaluateRoot(nodes[node + 2]);
+                }
+                try {
+                    interpreter.define(tokens[nodes[node + 1]], value);
+                } catch (RuntimeError error) {
+                    throw online(node, error);
+                }
+                break;
+            }
+        }
+    }
+
+    private Object evaluate(int node) {
+        switch (nodes[node]) {
+            case FlatAst.LITERAL:
+                return constants[nodes[node + 1]];
+            case FlatAst.VARIABLE:
+                return lookup(node);
+            case FlatAst.ASSIGN:
+                return assign(node, evaluate(nodes[node + 2]));
+            case FlatAst.BINARY: {
+                Object left = evaluate(nodes[node + 1]);
+                Object right = evaluate(nodes[node + 3]);
+                return binary(node, left, right);
+            }
+            case FlatAst.UNARY:
+                return unary(node, evaluate(nodes[node + 2]));
+            case FlatAst.CONDITIONAL:
+                if (interpreter.isTruthy(evaluate(nodes[node + 1]))) {
+                    return evaluate(nodes[node + 2]);
+                }
+                return evaluate(nodes[node + 3]);
+        }
+
+        return null;
+    }
+
+    private Object evaluateRoot(int node) {
+        if (interpreter.stackSafe) { return evaluateIterative(node); }
+        return evaluate(node);
+    }
+
+    // Evaluates node in the same order as evaluate(), but keeps pending
+    // nodes and intermediate values on heap allocated stacks. A node is
+    // pushed once to visit its operands and once more to combine them.
+    private Object evaluateIterative(int root) {
+        EvalStack stack = new EvalStack();
+        stack.visit(root);
+
+        while (!stack.isEmpty()) {
+            boolean combine = stack.isCombine();
+            int node = stack.pop();
+
+            switch (nodes[node]) {
+                case FlatAst.LITERAL:
+                    stack.push(constants[nodes[node + 1]]);
+                    break;
+                case FlatAst.VARIABLE:
+                    stack.push(lookup(node));
+                    break;
+                case FlatAst.ASSIGN:
+                    if (combine) {
+                        stack.push(assign(node, stack.popValue()));
+                    } else {
+                        stack.combine(node);
+                        stack.visit(nodes[node + 2]);
+                    }
+                    break;
+                case FlatAst.BINARY:
+                    if (combine) {
+                        Object right = stack.popValue();
+                        Object left = stack.popValue();
+                        stack.push(binary(node, left, right));
+                    } else {
+                        stack.combine(node);
+                        stack.visit(nodes[node + 3]);
+                        stack.visit(nodes[node + 1]);
+                    }
+                    break;
+                case FlatAst.UNARY:
+                    if (combine) {
+                        stack.push(unary(node, stack.popValue()));
+                    } else {
+                        stack.combine(node);
+                        stack.visit(nodes[node + 2]);
+                    }
+                    break;
+                case FlatAst.CONDITIONAL:
+                    if (combine) {
+                        stack.visit(interpreter.isTruthy(stack.popValue()) ? nodes[node + 2] : nodes[node + 3]);
+                    } else {
+                        stack.combine(node);
+                        stack.visit(nodes[node + 1]);
+                    }
+                    break;
+            }
+        }
+
+        return stack.popValue();
+    }
+
+    private Object lookup(int node) {
+        try {
+            return interpreter.lookup(tokens[nodes[node + 1]]);
+        } catch (RuntimeError error) {
+            throw online(node, error);
+        }
+    }
+
+    private Object assign(int node, Object value) {
+        try {
+            interpreter.assign(tokens[nodes[node + 1]], value);
+        } catch (RuntimeError error) {
+            throw online(node, error);
+        }
+        return value;
+    }
+
+    private Object binary(int node, Object left, Object right) {
+        try {
+            return interpreter.binary(tokens[nodes[node + 2]], left, right);
+        } catch (RuntimeError error) {
+            throw online(node, error);
+        }
+    }
+
+    private Object unary(int node, Object right) {
+        try {
+            return interpreter.unary(tokens[nodes[node + 1]], right);
+        } catch (RuntimeError error) {
+            throw online(node, error);
+        }
+    }
+
+    // The error raised with the token of node, which is shared by nodes on
+    // other lines, raised again with a token on the line of node.
+    private RuntimeError online(int node, RuntimeError error) {
+        Token token = error.token;
+        int line = lines[node / FlatAst.NODE_SIZE];
+        if (token.line == line) { return error; }
+        return new RuntimeError(new Token(token.type, token.lexeme, token.literal, line),
+                                error.getMessage());
+    }
+
+    private static final class EvalStack {
+        private int[] nodes = new int[32];
+        private boolean[] combine = new boolean[32];
+        private int nodeCount = 0;
+        private Object[] values = new Object[32];
+        private int valueCount = 0;
+
+        boolean isEmpty() {
+            return nodeCount == 0;
+        }
+
+        boolean isCombine() {
+            return combine[nodeCount - 1];
+        }
+
+        void visit(int node) {
+            pushNode(node, false);
+        }
+
+        void combine(int node) {
+            pushNode(node, true);
+        }
+
+        int pop() {
+            return nodes[--nodeCount];
+        }
+
+        void push(Object value) {
+            if (valueCount == values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[valueCount++] = value;
+        }
+
+        Object popValue() {
+            Object value = values[--valueCount];
+            values[valueCount] = null;
+            return value;
+        }
+
+        private void pushNode(int node, boolean combining) {
+            if (nodeCount == nodes.length) {
+                nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                combine = Arrays.copyOf(combine, combine.length * 2);
+            }
+            nodes[nodeCount] = node;
+            combine[nodeCount++] = combining;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.drank.lox;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+// Makes structurally identical expressions share one node as the parser
+// builds them, and folds an operation whose operands are all literals into
+// the literal it evaluates to, so generated scripts that repeat the same
+// subexpressions keep one copy of each and evaluate constant ones once.
+//
+// Nodes are interned bottom up, so two nodes are identical when their kind,
+// operator and literal value or global name are equal and their operands
+// are the same nodes. Only expressions without side effects are shared: an assignment
+// is never interned, though its operands may be. A node that may raise a
+// runtime error also keys on the line of its token, because the line is
+// part of the error. Folding evaluates the operation once at parse time
+// and keeps the node as it is if that fails, so the error is still raised
+// where and when the script would raise it. Strings built by folding are
+// not charged to the session, they are part of the tree like string
+// literals.
+//
+// Passes after the parser must allow for a node being reached from several
+// places, as TypeInference and the evaluators already do.
+class HashConsing {
+    private static final PrintStream NOWHERE = new PrintStream(OutputStream.nullOutputStream());
+
+    // Charges nothing, so neither the quotas nor what earlier folds built
+    // can stop a fold.
+    private final Interpreter folder = new Interpreter(false, NOWHERE, new Accounting(NOWHERE) {
+        @Override
+        void string(Token operator, int length) {}
+    });
+
+    // Every node but a literal that is left after folding reads a global or
+    // holds an operation that failed to fold, and those key on their line,
+    // so it can only be shared within its line. Such nodes are dropped once
+    // the parser moves on to another line, so the table stays small.
+    private final Map<Object, Expr> literals = new HashMap<>();
+    private final Map<Key, Expr> lineNodes = new HashMap<>();
+    private int line = 0;
+
+    // Returns the node identical to expr, folded if it can be, which is expr
+    // itself the first time one like it is seen.
+    Expr intern(Expr expr) {
+        switch (expr.kind) {
+            case Expr.ASSIGN:
+                return expr;
+            case Expr.LITERAL: {
+                Expr shared = literals.putIfAbsent(((Expr.Literal)expr).value, expr);
+                return shared == null ? expr : shared;
+            }
+        }
+
+        Expr folded = fold(expr);
+        if (folded != null) { return folded; }
+
+        Key key = new Key(expr);
+        if (key.line != 0 && key.line != line) {
+            line = key.line;
+            lineNodes.clear();
+        }
+        Expr shared = lineNodes.putIfAbsent(key, expr);
+        return shared == null ? expr : shared;
+    }
+
+    // The interned literal expr evaluates to, or null if it has an operand
+    // that is not a literal or evaluating it fails.
+    private Expr fold(Expr expr) {
+        try {
+            switch (expr.kind) {
+                case Expr.GROUPING: {
+                    Expr expression = ((Expr.Grouping)expr).expression;
+                    return expression instanceof Expr.Literal ? expression : null;
+                }
+                case Expr.UNARY: {
+                    Expr.Unary unary = (Expr.Unary)expr;
+                    if (!(unary.right instanceof Expr.Literal)) { return null; }
+                    return literal(folder.unary(unary.operator, value(unary.right)));
+                }
+                case Expr.BINARY: {
+                    Expr.Binary binary = (Expr.Binary)expr;
+                    if (!(binary.left instanceof Expr.Literal) || !(binary.right instanceof Expr.Literal)) {
+                        return null;
+                    }
+                    return literal(folder.binary(binary.operator, value(binary.left), value(binary.right)));
+                }
+                case Expr.CONDITIONAL: {
+                    Expr.Conditional conditional = (Expr.Conditional)expr;
+                    if (!(conditional.condition instanceof Expr.Literal) ||
+                        !(conditional.thenBranch instanceof Expr.Literal) ||
+                        !(conditional.elseBranch instanceof Expr.Literal)) {
+                        return null;
+                    }
+                    return folder.isTruthy(value(conditional.condition))
+                        ? conditional.thenBranch : conditional.elseBranch;
+                }
+            }
+        } catch (RuntimeError error) {
+            // left for the script to raise
+        }
+        return null;
+    }
+
+    private Expr literal(Object value) {
+        return intern(new Expr.Literal(value));
+    }
+
+    private static Object value(Expr literal) {
+        return ((Expr.Literal)literal).value;
+    }
+
+    // Whether evaluating a node with this operator, not counting its
+    // operands, may raise a runtime error.
+    private static boolean canFail(Token operator) {
+        switch (operator.type) {
+            case BANG:
+            case BANG_EQUAL:
+            case EQUAL_EQUAL:
+            case COMMA:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    // Identity of a node other than a literal or an assignment, whose
+    // operands are already interned and are compared by reference.
+    private static final class Key {
+        final int kind;
+        final TokenType operator;
+        final String name;
+        final int line;
+        final Expr a;
+        final Expr b;
+        final Expr c;
+
+        Key(Expr expr) {
+            TokenType operator = null;
+            String name = null;
+            int line = 0;
+            Expr a = null;
+            Expr b = null;
+            Expr c = null;
+
+            switch (expr.kind) {
+                case Expr.VARIABLE: {
+                    // reading an undefined global fails
+                    Token token = ((Expr.Variable)expr).name;
+                    name = token.lexeme;
+                    line = token.line;
+                    break;
+                }
+                case Expr.GROUPING:
+                    a = ((Expr.Grouping)expr).expression;
+                    break;
+                case Expr.UNARY: {
+                    Expr.Unary unary = (Expr.Unary)expr;
+                    operator = unary.operator.type;
+                    if (canFail(unary.operator)) { line = unary.operator.line; }
+                    a = unary.right;
+                    break;
+                }
+                case Expr.BINARY: {
+                    Expr.Binary binary = (Expr.Binary)expr;
+                    operator = binary.operator.type;
+                    if (canFail(binary.operator)) { line = binary.operator.line; }
+                    a = binary.left;
+                    b = binary.right;
+                    break;
+                }
+                case Expr.CONDITIONAL: {
+                    Expr.Conditional conditional = (Expr.Conditional)expr;
+                    a = conditional.condition;
+                    b = conditional.thenBranch;
+                    c = conditional.elseBranch;
+                    break;
+                }
+            }
+
+            this.kind = expr.kind;
+            this.operator = operator;
+            this.name = name;
+            this.line = line;
+            this.a = a;
+            this.b = b;
+            this.c = c;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Key)) { return false; }
+            Key other = (Key)object;
+            return kind == other.kind && operator == other.operator && line == other.line &&
+                   Objects.equals(name, other.name) && a == other.a && b == other.b && c == other.c;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = kind;
+            hash = 31 * hash + Objects.hashCode(operator);
+            hash = 31 * hash + line;
+            hash = 31 * hash + Objects.hashCode(name);
+            hash = 31 * hash + System.identityHashCode(a);
+            hash = 31 * hash + System.identityHashCode(b);
+            hash = 31 * hash + System.identityHashCode(c);
+            return hash;
+        }
+    }
+}
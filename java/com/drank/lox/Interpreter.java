@@ -1,35 +1,91 @@
 package com.drank.lox;
 
+import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.List;
 
 class Interpreter implements Expr.Visitor<Object>,
                              Stmt.Visitor<Void> {
-    private Environment environment = new Environment();
+    private final Environment environment;
+    final boolean stackSafe;
+    private final PrintStream out;
+    final Accounting accounting;
 
-    void interpret(List<Stmt> statements) {
+    // Called back by the statements it has wrapped in breakpoints.
+    Debugger debugger = null;
+
+    Interpreter() {
+        this(false, System.out, new Accounting(System.err));
+    }
+
+    // A stack safe interpreter evaluates each statement's expression with an
+    // explicit work stack, so deeply nested trees can not overflow the Java
+    // stack. The mode is checked once per statement, not per node. print
+    // statements write to out. Strings built and globals defined are
+    // charged to accounting.
+    Interpreter(boolean stackSafe, PrintStream out, Accounting accounting) {
+        this(stackSafe, out, accounting, new Environment());
+    }
+
+    // An interpreter whose globals live in the given environment.
+    Interpreter(boolean stackSafe, PrintStream out, Accounting accounting, Environment environment) {
+        this.stackSafe = stackSafe;
+        this.out = out;
+        this.accounting = accounting;
+        this.environment = environment;
+    }
+
+    // Returns whether the statements ran without a runtime error.
+    boolean interpret(List<Stmt> statements) {
         try {
             for (Stmt statement : statements) {
                 execute(statement);
             }
+            return true;
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
+            return false;
         }
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    Object lookup(Token name) {
+        return environment.get(name);
+    }
+
+    void assign(Token name, Object value) {
+        environment.assign(name, value);
+    }
+
+    // Defines a global restored from a snapshot.
+    void define(String name, Object value) {
+        accounting.global(name, null);
+        environment.define(name, value);
+    }
+
+    void define(Token name, Object value) {
+        accounting.global(name.lexeme, name);
+        environment.define(name.lexeme, value);
+    }
+
+    void print(Object value) {
+        out.println(stringify(value));
+    }
+
+    // Executes one statement, leaving a RuntimeError to the caller.
+    void execute(Stmt stmt) {
+        Stmt.dispatch(stmt, this);  // => visit<Stmt Type>(stmt)
     }
 
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
-        evaluate(stmt.expression);
+        evaluateRoot(stmt.expression);
         return null;
     }
 
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
-        Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        Object value = evaluateRoot(stmt.expression);
+        print(value);
         return null;
     }
 
@@ -37,10 +93,18 @@ class Interpreter implements Expr.Visitor<Object>,
     public Void visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if (stmt.initializer != null) {
-            value = evaluate(stmt.initializer);
+            value = evaluateRoot(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
+        define(stmt.name, value);
+        return null;
+    }
+
+    // Only the statements a Debugger has instrumented get here.
+    @Override
+    public Void visitBreakpointStmt(Stmt.Breakpoint stmt) {
+        debugger.reached(stmt, this);
+        execute(stmt.statement);
         return null;
     }
 
@@ -48,53 +112,84 @@ class Interpreter implements Expr.Visitor<Object>,
     public Object visitBinaryExpr(Expr.Binary expr) {
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
+        return binary(expr, left, right);
+    }
+
+    // Skips the operand checks when TypeInference has proven the operand
+    // types. Equality goes through binary() since it compares boxed values.
+    private Object binary(Expr.Binary expr, Object left, Object right) {
+        int leftType = expr.left.type;
+        int rightType = expr.right.type;
+        if (leftType == TypeInference.NUMBER && rightType == TypeInference.NUMBER) {
+            switch (expr.operator.type) {
+                case GREATER: return (double)left > (double)right;
+                case GREATER_EQUAL: return (double)left >= (double)right;
+                case LESSER: return (double)left < (double)right;
+                case LESSER_EQUAL: return (double)left <= (double)right;
+                case MINUS: return (double)left - (double)right;
+                case PLUS: return (double)left + (double)right;
+                case STAR: return (double)left * (double)right;
+                default: break;
+            }
+        } else if (leftType == TypeInference.STRING && rightType == TypeInference.STRING &&
+                   expr.operator.type == TokenType.PLUS) {
+            return concatenate(expr.operator, (String)left, (String)right);
+        }
+        return binary(expr.operator, left, right);
+    }
 
-        switch (expr.operator.type) {
+    Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left > (double)right;
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left >= (double)right;
             case LESSER:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left < (double)right;
             case LESSER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left <= (double)right;
             case BANG_EQUAL:
                 return !isEqual(left, right);
             case EQUAL_EQUAL:
                 return isEqual(left, right);
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left - (double)right;
             case PLUS:
                 if (left instanceof Double && right instanceof Double) {
                     return (double)left + (double)right;
                 }
                 if (left instanceof String && right instanceof String) {
-                    return (String)left + (String)right;
+                    return concatenate(operator, (String)left, (String)right);
                 }
                 if (left instanceof String || right instanceof String) {
-                    return stringify(left) + stringify(right);
+                    return concatenate(operator, stringify(left), stringify(right));
                 }
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
+                throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 // handle div by 0
                 if ((double)right == 0) {
-                    throw new RuntimeError(expr.operator, "Division by 0.");
+                    throw new RuntimeError(operator, "Division by 0.");
                 }
                 return (double)left / (double)right;
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left * (double)right;
         }
 
         return null;
     }
 
+    String concatenate(Token operator, String left, String right) {
+        accounting.string(operator, left.length() + right.length());
+        return left + right;
+    }
+
     @Override
     public Object visitGroupingExpr(Expr.Grouping expr) {
         return evaluate(expr.expression);
@@ -108,12 +203,22 @@ class Interpreter implements Expr.Visitor<Object>,
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
         Object right = evaluate(expr.right);
+        return unary(expr, right);
+    }
 
-        switch (expr.operator.type) {
+    private Object unary(Expr.Unary expr, Object right) {
+        if (expr.right.type == TypeInference.NUMBER && expr.operator.type == TokenType.MINUS) {
+            return -(double)right;
+        }
+        return unary(expr.operator, right);
+    }
+
+    Object unary(Token operator, Object right) {
+        switch (operator.type) {
             case BANG:
                 return !isTruthy(right);
             case MINUS:
-                checkNumberOperand(expr.operator, right);
+                checkNumberOperand(operator, right);
                 return -(double)right;
         }
 
@@ -151,7 +256,7 @@ class Interpreter implements Expr.Visitor<Object>,
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private boolean isTruthy(Object object) {
+    boolean isTruthy(Object object) {
         if (object == null) { return false; }
         if (object instanceof Boolean) { return (boolean)object; }
         return true;
@@ -164,10 +269,131 @@ class Interpreter implements Expr.Visitor<Object>,
     }
 
     private Object evaluate(Expr expr) {
-        return expr.accept(this);  // => visit<Expr Type>(expr)
+        return Expr.dispatch(expr, this);  // => visit<Expr Type>(expr)
+    }
+
+    private Object evaluateRoot(Expr expr) {
+        if (stackSafe) { return evaluateIterative(expr); }
+        return evaluate(expr);
+    }
+
+    // Evaluates expr in the same order as the visitors, but keeps pending
+    // nodes and intermediate values on heap allocated stacks. A node is
+    // pushed once to visit its operands and once more to combine them.
+    private Object evaluateIterative(Expr root) {
+        EvalStack stack = new EvalStack();
+        stack.visit(root);
+
+        while (!stack.isEmpty()) {
+            boolean combine = stack.isCombine();
+            Expr expr = stack.pop();
+
+            if (expr instanceof Expr.Literal) {
+                stack.push(((Expr.Literal)expr).value);
+            } else if (expr instanceof Expr.Variable) {
+                stack.push(environment.get(((Expr.Variable)expr).name));
+            } else if (expr instanceof Expr.Grouping) {
+                stack.visit(((Expr.Grouping)expr).expression);
+            } else if (expr instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary)expr;
+                if (combine) {
+                    Object right = stack.popValue();
+                    Object left = stack.popValue();
+                    stack.push(binary(binary, left, right));
+                } else {
+                    stack.combine(binary);
+                    stack.visit(binary.right);
+                    stack.visit(binary.left);
+                }
+            } else if (expr instanceof Expr.Unary) {
+                Expr.Unary unary = (Expr.Unary)expr;
+                if (combine) {
+                    stack.push(unary(unary, stack.popValue()));
+                } else {
+                    stack.combine(unary);
+                    stack.visit(unary.right);
+                }
+            } else if (expr instanceof Expr.Conditional) {
+                Expr.Conditional conditional = (Expr.Conditional)expr;
+                if (combine) {
+                    if (isTruthy(stack.popValue())) {
+                        stack.visit(conditional.thenBranch);
+                    } else {
+                        stack.visit(conditional.elseBranch);
+                    }
+                } else {
+                    stack.combine(conditional);
+                    stack.visit(conditional.condition);
+                }
+            } else if (expr instanceof Expr.Assign) {
+                Expr.Assign assign = (Expr.Assign)expr;
+                if (combine) {
+                    Object value = stack.popValue();
+                    environment.assign(assign.name, value);
+                    stack.push(value);
+                } else {
+                    stack.combine(assign);
+                    stack.visit(assign.value);
+                }
+            }
+        }
+
+        return stack.popValue();
+    }
+
+    private static final class EvalStack {
+        private Expr[] nodes = new Expr[32];
+        private boolean[] combine = new boolean[32];
+        private int nodeCount = 0;
+        private Object[] values = new Object[32];
+        private int valueCount = 0;
+
+        boolean isEmpty() {
+            return nodeCount == 0;
+        }
+
+        boolean isCombine() {
+            return combine[nodeCount - 1];
+        }
+
+        void visit(Expr expr) {
+            pushNode(expr, false);
+        }
+
+        void combine(Expr expr) {
+            pushNode(expr, true);
+        }
+
+        Expr pop() {
+            Expr expr = nodes[--nodeCount];
+            nodes[nodeCount] = null;
+            return expr;
+        }
+
+        void push(Object value) {
+            if (valueCount == values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[valueCount++] = value;
+        }
+
+        Object popValue() {
+            Object value = values[--valueCount];
+            values[valueCount] = null;
+            return value;
+        }
+
+        private void pushNode(Expr expr, boolean combining) {
+            if (nodeCount == nodes.length) {
+                nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                combine = Arrays.copyOf(combine, combine.length * 2);
+            }
+            nodes[nodeCount] = expr;
+            combine[nodeCount++] = combining;
+        }
     }
 
-    private String stringify(Object object) {
+    String stringify(Object object) {
         if (object == null) { return "nil"; }
 
         if (object instanceof Double) {
@@ -5,52 +5,88 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class Lox {
-    public static Interpreter interpreter = new Interpreter();
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
+    static boolean stackSafe = false;
+    static boolean flat = false;
+    static boolean optimize = false;
+    static boolean pipeline = false;
+    static boolean fastScan = false;
+    static boolean memoryStats = false;
+    static boolean inferTypes = false;
+    static boolean parallel = false;
+    static boolean hashCons = false;
+    static boolean debug = false;
+    static final List<Integer> breakpoints = new ArrayList<>();
+    static ScriptCache cache = null;
+    static Snapshot snapshot = null;
+    static Path saveSnapshot = null;
+
+    private static final ThreadLocal<Session> session = new ThreadLocal<>();
+
+    // Standard input, shared by the REPL and the debugger's commands.
+    private static BufferedReader stdin = null;
+
+    static BufferedReader stdin() {
+        if (stdin == null) { stdin = new BufferedReader(new InputStreamReader(System.in)); }
+        return stdin;
+    }
+
+    // The session of the current thread. Threads that never attached one,
+    // like the main thread, get one writing to System.out and System.err.
+    static Session session() {
+        Session current = session.get();
+        if (current == null) {
+            current = new Session(System.out, System.err);
+            session.set(current);
+        }
+        return current;
+    }
+
+    // Makes current the session of this thread and returns the one it
+    // replaces, which may be null.
+    static Session attach(Session current) {
+        Session previous = session.get();
+        session.set(current);
+        return previous;
+    }
 
     private static void runFile(String path) throws IOException {
+        Session main = session();
+        main.keepGlobals = saveSnapshot != null;
         byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
-        if (hadError) { System.exit(65); }
-        if (hadRuntimeError) { System.exit(70); }
+        List<Stmt> statements = main.run(new String(bytes, Charset.defaultCharset()));
+        if (main.exitCode() != 0) { System.exit(main.exitCode()); }
+
+        if (saveSnapshot != null) {
+            Snapshot.capture(main.interpreter, snapshot, statements).write(saveSnapshot);
+        }
     }
 
     private static void runPrompt() throws IOException {
-        InputStreamReader input = new InputStreamReader(System.in);
-        BufferedReader reader = new BufferedReader(input);
+        BufferedReader reader = stdin();
+        session().keepGlobals = true;
 
         for (;;) {
             System.out.print("> ");
             String line = reader.readLine();
             if (line == null) break;
-            run(line);
-            hadError = false;
+            session().run(line);
+            session().hadError = false;
         }
     }
 
-    private static void run(String source) throws IOException {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
-
-        if (hadError) { return; }
-
-        interpreter.interpret(statements);
-    }
-
     static void error(int line, String message) {
         report(line, "", message);
     }
 
     private static void report(int line, String where, String message) {
-        System.err.println("[line " + line + "] Error " + where + ": " + message);
-        hadError = true;
+        session().report(line, where, message);
     }
 
     static void error(Token token, String message) {
@@ -62,17 +98,118 @@ public class Lox {
     }
 
     static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() + "\n[line "
-                + error.token.line + "]");
-        hadRuntimeError = true;
+        session().runtimeError(error);
+    }
+
+    private static void usage() {
+        System.out.println("Usage: jlox [--stack-safe] [--flat] [--optimize | --pipeline] [--fast-scan]");
+        System.out.println("            [--infer-types] [--parallel] [--hash-cons]");
+        System.out.println("            [--debug] [--break line]... [--cache nodes]");
+        System.out.println("            [--snapshot file] [--save-snapshot file]");
+        System.out.println("            [--quota counter=soft:hard]... [--memory-stats] [script]");
+        System.out.println("       jlox [options] --batch [--jobs n] (script | dir | @manifest)...");
+        System.out.println("       jlox [options] --daemon socket [--jobs n]");
+        System.exit(64);
+    }
+
+    private static void quota(String value) {
+        try {
+            Accounting.configure(value);
+        } catch (IllegalArgumentException error) {
+            System.err.println(error.getMessage());
+            usage();
+        }
+    }
+
+    private static void cache(String value) {
+        try {
+            cache = new ScriptCache(Accounting.size(value));
+        } catch (NumberFormatException error) {
+            System.err.println("Expect a cache size in nodes, got '" + value + "'.");
+            usage();
+        }
+    }
+
+    private static int line(String value) {
+        try {
+            int line = Integer.parseInt(value);
+            if (line > 0) { return line; }
+        } catch (NumberFormatException error) {
+            // reported below
+        }
+        System.err.println("Expect a line number, got '" + value + "'.");
+        usage();
+        return 0;
+    }
+
+    private static int jobs(String value) {
+        try {
+            int jobs = Integer.parseInt(value);
+            if (jobs > 0) { return jobs; }
+        } catch (NumberFormatException error) {
+            // reported below
+        }
+        System.err.println("Expect a number of jobs, got '" + value + "'.");
+        usage();
+        return 0;
+    }
+
+    private static String optionValue(String[] args, int arg) {
+        if (arg >= args.length) { usage(); }
+        return args[arg];
     }
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        boolean batch = false;
+        Path daemon = null;
+        int jobs = 0;
+        int arg = 0;
+        for (; arg < args.length && args[arg].startsWith("--"); arg++) {
+            switch (args[arg]) {
+                case "--stack-safe": stackSafe = true; break;
+                case "--flat": flat = true; break;
+                case "--optimize": optimize = true; break;
+                case "--pipeline": pipeline = true; break;
+                case "--fast-scan": fastScan = true; break;
+                case "--quota": quota(optionValue(args, ++arg)); break;
+                case "--memory-stats": memoryStats = true; break;
+                case "--infer-types": inferTypes = true; break;
+                case "--parallel": parallel = true; break;
+                case "--hash-cons": hashCons = true; break;
+                case "--debug": debug = true; break;
+                case "--break": debug = true; breakpoints.add(line(optionValue(args, ++arg))); break;
+                case "--cache": cache(optionValue(args, ++arg)); break;
+                case "--snapshot": snapshot = Snapshot.read(Paths.get(optionValue(args, ++arg))); break;
+                case "--save-snapshot": saveSnapshot = Paths.get(optionValue(args, ++arg)); break;
+                case "--batch": batch = true; break;
+                case "--jobs": jobs = jobs(optionValue(args, ++arg)); break;
+                case "--daemon": daemon = Paths.get(optionValue(args, ++arg)); break;
+                default: usage();
+            }
+        }
+        // the optimizer and the parallel mode need the whole script before
+        // running any of it, and the parallel mode runs the tree
+        if (pipeline && (optimize || parallel || cache != null)) { usage(); }
+        if (parallel && flat) { usage(); }
+        // breakpoints are run by the tree interpreter, one script at a time
+        if (debug && (flat || parallel || batch || daemon != null)) { usage(); }
+
+        if (daemon != null) {
+            if (arg != args.length || batch || saveSnapshot != null) { usage(); }
+            new Daemon(daemon, jobs > 0 ? jobs : Runtime.getRuntime().availableProcessors()).serve();
+            return;
+        }
+
+        if (batch) {
+            if (arg == args.length || saveSnapshot != null) { usage(); }
+            List<Path> scripts = Batch.collect(Arrays.asList(args).subList(arg, args.length));
+            System.exit(new Batch(jobs > 0 ? jobs : 1).run(scripts));
+        }
+
+        if (args.length - arg > 1) {
+            usage();
+        } else if (args.length - arg == 1) {
+            runFile(args[arg]);
         } else {
             runPrompt();
         }
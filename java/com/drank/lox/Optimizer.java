@@ -0,0 +1,661 @@
+package com.drank.lox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+// Dataflow optimizations over the top level statements of a program:
+//
+// - constant and copy propagation replaces reads of a global whose value
+//   is known to be a literal or a copy of another global,
+// - dead store elimination drops var initializers and assignments whose
+//   value is overwritten before it is read, and expression statements
+//   that have no effect.
+//
+// Evaluation order, print output and runtime errors stay the same: an
+// expression that assigns or may fail is kept even when its value is not
+// needed, and a definition is kept while a later assignment relies on it.
+//
+// The first pass walks forward recording which reads and assignments can
+// not fail, the second walks backward computing which globals are live.
+// With keepGlobals, as in the REPL or when saving a snapshot, globals are
+// read again once the program ends or stops on a runtime error.
+class Optimizer {
+    private final boolean keepGlobals;
+
+    // reads and assignments of globals that are known to be defined, and
+    // var statements redefining a global that is, found by the forward pass
+    private final Set<Expr> safeAccesses = Collections.newSetFromMap(new IdentityHashMap<>());
+    // reads of globals that may not be defined, for a hash-consed read that
+    // is safe in one place and not in another
+    private final Set<Expr> unsafeAccesses = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<Stmt> redefinitions = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // forward pass state: the known literal or copied global value of each
+    // global, and the globals known to be defined. Every store to a global
+    // gets a new stamp, and a copy is valid while its source has the stamp
+    // it had when the copy was made.
+    private Map<String, Expr> values = new HashMap<>();
+    private Map<String, Integer> stamps = new HashMap<>();
+    private Map<String, Integer> copiedStamps = new HashMap<>();
+    private Set<String> defined = new HashSet<>();
+    private int clock = 0;
+
+    // backward pass state: globals whose value may still be read, and
+    // globals a later assignment needs to be defined
+    private Names live;
+    private Names needDefined;
+
+    private Optimizer(boolean keepGlobals) {
+        this.keepGlobals = keepGlobals;
+    }
+
+    static List<Stmt> optimize(List<Stmt> statements, boolean keepGlobals) {
+        Optimizer optimizer = new Optimizer(keepGlobals);
+
+        List<Stmt> propagated = new ArrayList<>(statements.size());
+        // rewritten statements keep the line of the one they replace
+        for (Stmt stmt : statements) {
+            Stmt result = optimizer.propagate(stmt);
+            result.line = stmt.line;
+            propagated.add(result);
+        }
+
+        optimizer.live = new Names(keepGlobals);
+        optimizer.needDefined = new Names(keepGlobals);
+
+        List<Stmt> optimized = new ArrayList<>(propagated.size());
+        for (int i = propagated.size() - 1; i >= 0; i--) {
+            Stmt stmt = optimizer.eliminate(propagated.get(i));
+            if (stmt != null) {
+                stmt.line = propagated.get(i).line;
+                optimized.add(stmt);
+            }
+        }
+        Collections.reverse(optimized);
+        return optimized;
+    }
+
+    // Forward pass
+
+    private Stmt propagate(Stmt stmt) {
+        if (stmt instanceof Stmt.Expression) {
+            Expr expression = ((Stmt.Expression)stmt).expression;
+            Expr propagated = propagate(expression);
+            return propagated == expression ? stmt : new Stmt.Expression(propagated);
+        }
+
+        if (stmt instanceof Stmt.Print) {
+            Expr expression = ((Stmt.Print)stmt).expression;
+            Expr propagated = propagate(expression);
+            return propagated == expression ? stmt : new Stmt.Print(propagated);
+        }
+
+        Stmt.Var var = (Stmt.Var)stmt;
+        Expr initializer = var.initializer == null ? null : propagate(var.initializer);
+        Stmt result = initializer == var.initializer ? var : new Stmt.Var(var.name, initializer);
+
+        String name = var.name.lexeme;
+        if (defined.contains(name)) { redefinitions.add(result); }
+        store(name, initializer == null ? new Expr.Literal(null) : initializer);
+        return result;
+    }
+
+    // A pending step of either pass: a node to visit, or one whose operands
+    // have been visited and that is now rebuilt from them, in the given
+    // state. A conditional keeps the state of the pass from before one of
+    // its branches, to restore before the other.
+    private static final int VISIT = 0;
+    private static final int COMBINE = 1;
+    private static final int AFTER_CONDITION = 2;
+    private static final int AFTER_THEN = 3;
+    private static final int AFTER_ELSE = 4;
+
+    private static final class Step {
+        final Expr expr;
+        final int state;
+        Map<String, Expr> values;
+        Map<String, Integer> stamps;
+        Map<String, Integer> copiedStamps;
+        Set<String> defined;
+        Names live;
+        Names needDefined;
+
+        Step(Expr expr, int state) {
+            this.expr = expr;
+            this.state = state;
+        }
+    }
+
+    // Propagates into expr in evaluation order, without recursing so that
+    // trees from the stack safe parser do not overflow, and returns the
+    // rewritten expr.
+    private Expr propagate(Expr root) {
+        Deque<Step> steps = new ArrayDeque<>();
+        Deque<Expr> results = new ArrayDeque<>();
+        steps.push(new Step(root, VISIT));
+
+        while (!steps.isEmpty()) {
+            Step step = steps.pop();
+            Expr expr = step.expr;
+
+            switch (step.state) {
+                case VISIT:
+                    if (expr instanceof Expr.Variable) {
+                        results.push(propagateRead((Expr.Variable)expr));
+                    } else if (expr instanceof Expr.Assign) {
+                        steps.push(new Step(expr, COMBINE));
+                        steps.push(new Step(((Expr.Assign)expr).value, VISIT));
+                    } else if (expr instanceof Expr.Grouping) {
+                        steps.push(new Step(expr, COMBINE));
+                        steps.push(new Step(((Expr.Grouping)expr).expression, VISIT));
+                    } else if (expr instanceof Expr.Unary) {
+                        steps.push(new Step(expr, COMBINE));
+                        steps.push(new Step(((Expr.Unary)expr).right, VISIT));
+                    } else if (expr instanceof Expr.Binary) {
+                        steps.push(new Step(expr, COMBINE));
+                        steps.push(new Step(((Expr.Binary)expr).right, VISIT));
+                        steps.push(new Step(((Expr.Binary)expr).left, VISIT));
+                    } else if (expr instanceof Expr.Conditional) {
+                        steps.push(new Step(expr, AFTER_CONDITION));
+                        steps.push(new Step(((Expr.Conditional)expr).condition, VISIT));
+                    } else {
+                        results.push(expr);
+                    }
+                    break;
+
+                case COMBINE:
+                    results.push(rebuildPropagated(expr, results));
+                    break;
+
+                case AFTER_CONDITION: {
+                    Step then = new Step(expr, AFTER_THEN);
+                    then.values = new HashMap<>(values);
+                    then.stamps = new HashMap<>(stamps);
+                    then.copiedStamps = new HashMap<>(copiedStamps);
+                    then.defined = new HashSet<>(defined);
+                    steps.push(then);
+                    steps.push(new Step(((Expr.Conditional)expr).thenBranch, VISIT));
+                    break;
+                }
+
+                case AFTER_THEN: {
+                    // the else branch starts from the state before the then
+                    // branch, which is kept to merge with afterwards
+                    Step otherwise = new Step(expr, AFTER_ELSE);
+                    otherwise.values = values;
+                    otherwise.stamps = stamps;
+                    otherwise.copiedStamps = copiedStamps;
+                    otherwise.defined = defined;
+                    values = step.values;
+                    stamps = step.stamps;
+                    copiedStamps = step.copiedStamps;
+                    defined = step.defined;
+                    steps.push(otherwise);
+                    steps.push(new Step(((Expr.Conditional)expr).elseBranch, VISIT));
+                    break;
+                }
+
+                case AFTER_ELSE: {
+                    Map<String, Expr> thenValues = step.values;
+                    Map<String, Integer> thenStamps = step.stamps;
+                    Map<String, Integer> thenCopied = step.copiedStamps;
+
+                    // only what holds after both branches holds after the
+                    // conditional, a global stored to in either branch gets a
+                    // new stamp
+                    values.entrySet().removeIf(entry ->
+                        !sameValue(entry.getValue(), thenValues.get(entry.getKey())) ||
+                        !Objects.equals(copiedStamps.get(entry.getKey()), thenCopied.get(entry.getKey())));
+                    for (Map.Entry<String, Integer> stamp : thenStamps.entrySet()) {
+                        if (!stamp.getValue().equals(stamps.get(stamp.getKey()))) {
+                            stamps.put(stamp.getKey(), ++clock);
+                        }
+                    }
+                    for (Map.Entry<String, Integer> stamp : stamps.entrySet()) {
+                        if (!stamp.getValue().equals(thenStamps.get(stamp.getKey()))) {
+                            stamp.setValue(++clock);
+                        }
+                    }
+                    defined.retainAll(step.defined);
+
+                    Expr.Conditional conditional = (Expr.Conditional)expr;
+                    Expr elseBranch = results.pop();
+                    Expr thenBranch = results.pop();
+                    Expr condition = results.pop();
+                    if (condition == conditional.condition &&
+                        thenBranch == conditional.thenBranch &&
+                        elseBranch == conditional.elseBranch) {
+                        results.push(conditional);
+                    } else {
+                        results.push(new Expr.Conditional(condition, thenBranch, elseBranch));
+                    }
+                    break;
+                }
+            }
+        }
+
+        return results.pop();
+    }
+
+    private Expr propagateRead(Expr.Variable expr) {
+        Token name = expr.name;
+        Expr value = known(name.lexeme);
+
+        if (value instanceof Expr.Literal) { return value; }
+        Expr result = expr;
+        if (value instanceof Expr.Variable) {
+            // keep the line of the read for error messages
+            Token source = ((Expr.Variable)value).name;
+            result = new Expr.Variable(new Token(source.type, source.lexeme, null, name.line));
+        }
+
+        if (defined.contains(name.lexeme)) {
+            safeAccesses.add(result);
+        } else {
+            unsafeAccesses.add(result);
+        }
+        // the read fails unless it is defined
+        defined.add(name.lexeme);
+        return result;
+    }
+
+    // Rebuilds expr from its propagated operands, on top of results.
+    private Expr rebuildPropagated(Expr expr, Deque<Expr> results) {
+        if (expr instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign)expr;
+            Expr value = results.pop();
+            Expr result = value == assign.value ? assign : new Expr.Assign(assign.name, value);
+
+            if (defined.contains(assign.name.lexeme)) {
+                safeAccesses.add(result);
+            }
+            store(assign.name.lexeme, value);
+            return result;
+        }
+
+        if (expr instanceof Expr.Grouping) {
+            Expr expression = ((Expr.Grouping)expr).expression;
+            Expr propagated = results.pop();
+            if (propagated instanceof Expr.Literal || propagated instanceof Expr.Variable) {
+                return propagated;
+            }
+            return propagated == expression ? expr : new Expr.Grouping(propagated);
+        }
+
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            Expr right = results.pop();
+            return right == unary.right ? unary : new Expr.Unary(unary.operator, right);
+        }
+
+        Expr.Binary binary = (Expr.Binary)expr;
+        Expr right = results.pop();
+        Expr left = results.pop();
+        if (left == binary.left && right == binary.right) { return binary; }
+        return new Expr.Binary(left, binary.operator, right);
+    }
+
+    // The literal or copied global known to be the value of name, if any.
+    private Expr known(String name) {
+        Expr value = values.get(name);
+        if (value instanceof Expr.Variable) {
+            String source = ((Expr.Variable)value).name.lexeme;
+            if (!stamps.get(source).equals(copiedStamps.get(name))) {
+                // the source has been stored to since
+                return null;
+            }
+        }
+        return value;
+    }
+
+    // Records that name now holds value. Copies of its old value become
+    // stale through its new stamp.
+    private void store(String name, Expr value) {
+        values.remove(name);
+        copiedStamps.remove(name);
+        stamps.put(name, ++clock);
+
+        if (value instanceof Expr.Literal) {
+            values.put(name, value);
+        } else if (value instanceof Expr.Variable) {
+            String source = ((Expr.Variable)value).name.lexeme;
+            if (!source.equals(name) && stamps.containsKey(source)) {
+                values.put(name, value);
+                copiedStamps.put(name, stamps.get(source));
+            }
+        }
+        defined.add(name);
+    }
+
+    private static boolean sameValue(Expr a, Expr b) {
+        if (a == b) { return true; }
+        if (a instanceof Expr.Literal && b instanceof Expr.Literal) {
+            return Objects.equals(((Expr.Literal)a).value, ((Expr.Literal)b).value);
+        }
+        if (a instanceof Expr.Variable && b instanceof Expr.Variable) {
+            return ((Expr.Variable)a).name.lexeme.equals(((Expr.Variable)b).name.lexeme);
+        }
+        return false;
+    }
+
+    // Backward pass
+
+    private Stmt eliminate(Stmt stmt) {
+        if (stmt instanceof Stmt.Expression) {
+            Expr expression = ((Stmt.Expression)stmt).expression;
+            if (isPure(expression)) { return null; }
+
+            Expr eliminated = eliminate(expression);
+            if (isPure(eliminated)) { return null; }
+            return eliminated == expression ? stmt : new Stmt.Expression(eliminated);
+        }
+
+        if (stmt instanceof Stmt.Print) {
+            Expr expression = ((Stmt.Print)stmt).expression;
+            Expr eliminated = eliminate(expression);
+            return eliminated == expression ? stmt : new Stmt.Print(eliminated);
+        }
+
+        Stmt.Var var = (Stmt.Var)stmt;
+        String name = var.name.lexeme;
+        Expr initializer = var.initializer;
+
+        if (!live.contains(name)) {
+            if (!needDefined.contains(name) || redefinitions.contains(var)) {
+                // neither the value nor the definition is used
+                if (initializer == null || isPure(initializer)) { return null; }
+                Expr eliminated = eliminate(initializer);
+                if (isPure(eliminated)) { return null; }
+                return new Stmt.Expression(eliminated);
+            }
+
+            if (initializer != null && isPure(initializer)) {
+                // a later assignment needs the definition but not the value
+                needDefined.remove(name);
+                return new Stmt.Var(var.name, null);
+            }
+        }
+
+        live.remove(name);
+        needDefined.remove(name);
+        if (initializer == null) { return var; }
+
+        Expr eliminated = eliminate(initializer);
+        return eliminated == initializer ? var : new Stmt.Var(var.name, eliminated);
+    }
+
+    // Eliminates in expr in reverse evaluation order, without recursing, and
+    // returns the rewritten expr.
+    private Expr eliminate(Expr root) {
+        Deque<Step> steps = new ArrayDeque<>();
+        Deque<Expr> results = new ArrayDeque<>();
+        steps.push(new Step(root, VISIT));
+
+        while (!steps.isEmpty()) {
+            Step step = steps.pop();
+            Expr expr = step.expr;
+
+            switch (step.state) {
+                case VISIT:
+                    if (expr instanceof Expr.Variable) {
+                        live.add(((Expr.Variable)expr).name.lexeme);
+                        mayFail(expr);
+                        results.push(expr);
+                    } else if (expr instanceof Expr.Assign) {
+                        Expr.Assign assign = (Expr.Assign)expr;
+                        String name = assign.name.lexeme;
+
+                        if (!live.contains(name) && safeAccesses.contains(assign)) {
+                            // the stored value is never read, keep only its
+                            // evaluation
+                            steps.push(new Step(assign.value, VISIT));
+                            break;
+                        }
+
+                        live.remove(name);
+                        needDefined.add(name);
+                        mayFail(assign);
+                        steps.push(new Step(assign, COMBINE));
+                        steps.push(new Step(assign.value, VISIT));
+                    } else if (expr instanceof Expr.Grouping) {
+                        steps.push(new Step(expr, COMBINE));
+                        steps.push(new Step(((Expr.Grouping)expr).expression, VISIT));
+                    } else if (expr instanceof Expr.Unary) {
+                        mayFail(expr);
+                        steps.push(new Step(expr, COMBINE));
+                        steps.push(new Step(((Expr.Unary)expr).right, VISIT));
+                    } else if (expr instanceof Expr.Binary) {
+                        mayFail(expr);
+                        steps.push(new Step(expr, COMBINE));
+                        steps.push(new Step(((Expr.Binary)expr).left, VISIT));
+                        steps.push(new Step(((Expr.Binary)expr).right, VISIT));
+                    } else if (expr instanceof Expr.Conditional) {
+                        Step otherwise = new Step(expr, AFTER_ELSE);
+                        otherwise.live = live.copy();
+                        otherwise.needDefined = needDefined.copy();
+                        steps.push(otherwise);
+                        steps.push(new Step(((Expr.Conditional)expr).elseBranch, VISIT));
+                    } else {
+                        results.push(expr);
+                    }
+                    break;
+
+                case AFTER_ELSE: {
+                    // the then branch starts from what was live after the
+                    // conditional, the else branch's sets join it afterwards
+                    Step then = new Step(expr, AFTER_THEN);
+                    then.live = live;
+                    then.needDefined = needDefined;
+                    live = step.live;
+                    needDefined = step.needDefined;
+                    steps.push(then);
+                    steps.push(new Step(((Expr.Conditional)expr).thenBranch, VISIT));
+                    break;
+                }
+
+                case AFTER_THEN:
+                    live.addAll(step.live);
+                    needDefined.addAll(step.needDefined);
+                    steps.push(new Step(expr, COMBINE));
+                    steps.push(new Step(((Expr.Conditional)expr).condition, VISIT));
+                    break;
+
+                case COMBINE:
+                    results.push(rebuildEliminated(expr, results));
+                    break;
+            }
+        }
+
+        return results.pop();
+    }
+
+    // Rebuilds expr from its operands on top of results, pushed in reverse
+    // evaluation order.
+    private static Expr rebuildEliminated(Expr expr, Deque<Expr> results) {
+        if (expr instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign)expr;
+            Expr value = results.pop();
+            return value == assign.value ? assign : new Expr.Assign(assign.name, value);
+        }
+
+        if (expr instanceof Expr.Grouping) {
+            Expr expression = ((Expr.Grouping)expr).expression;
+            Expr eliminated = results.pop();
+            return eliminated == expression ? expr : new Expr.Grouping(eliminated);
+        }
+
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            Expr right = results.pop();
+            return right == unary.right ? unary : new Expr.Unary(unary.operator, right);
+        }
+
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            Expr left = results.pop();
+            Expr right = results.pop();
+            if (left == binary.left && right == binary.right) { return binary; }
+            return new Expr.Binary(left, binary.operator, right);
+        }
+
+        Expr.Conditional conditional = (Expr.Conditional)expr;
+        Expr condition = results.pop();
+        Expr thenBranch = results.pop();
+        Expr elseBranch = results.pop();
+        if (condition == conditional.condition &&
+            thenBranch == conditional.thenBranch &&
+            elseBranch == conditional.elseBranch) {
+            return conditional;
+        }
+        return new Expr.Conditional(condition, thenBranch, elseBranch);
+    }
+
+    // A runtime error leaves every global as it is at that point, which
+    // matters only when globals are kept.
+    private void mayFail(Expr expr) {
+        if (keepGlobals && canFail(expr)) {
+            live.addEverything();
+            needDefined.addEverything();
+        }
+    }
+
+    // Whether evaluating expr, not counting its operands, may raise a
+    // runtime error, or warn of a quota.
+    private boolean canFail(Expr expr) {
+        if (expr instanceof Expr.Variable || expr instanceof Expr.Assign) {
+            return !safeAccesses.contains(expr) || unsafeAccesses.contains(expr);
+        }
+
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (unary.operator.type == TokenType.BANG) { return false; }
+            return !(literal(unary.right) instanceof Double);
+        }
+
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            Object left = literal(binary.left);
+            Object right = literal(binary.right);
+            boolean numbers = left instanceof Double && right instanceof Double;
+
+            switch (binary.operator.type) {
+                case COMMA:
+                case BANG_EQUAL:
+                case EQUAL_EQUAL:
+                    return false;
+                case PLUS:
+                    if (numbers) { return false; }
+                    // a string built is charged to the strings quota
+                    if (Accounting.limited(Accounting.STRINGS)) { return true; }
+                    return !(left instanceof String) && !(right instanceof String);
+                case SLASH:
+                    return !numbers || (double)right == 0;
+                default:
+                    return !numbers;
+            }
+        }
+
+        return false;
+    }
+
+    // The value of a literal operand, or null for anything else.
+    private static Object literal(Expr expr) {
+        if (expr instanceof Expr.Literal) { return ((Expr.Literal)expr).value; }
+        return null;
+    }
+
+    // Whether evaluating expr can have no effect other than its value.
+    private boolean isPure(Expr root) {
+        Deque<Expr> pending = new ArrayDeque<>();
+        pending.push(root);
+
+        while (!pending.isEmpty()) {
+            Expr expr = pending.pop();
+            if (expr instanceof Expr.Literal) { continue; }
+            if (expr instanceof Expr.Variable) {
+                if (canFail(expr)) { return false; }
+            } else if (expr instanceof Expr.Grouping) {
+                pending.push(((Expr.Grouping)expr).expression);
+            } else if (expr instanceof Expr.Unary) {
+                if (canFail(expr)) { return false; }
+                pending.push(((Expr.Unary)expr).right);
+            } else if (expr instanceof Expr.Binary) {
+                if (canFail(expr)) { return false; }
+                pending.push(((Expr.Binary)expr).right);
+                pending.push(((Expr.Binary)expr).left);
+            } else if (expr instanceof Expr.Conditional) {
+                Expr.Conditional conditional = (Expr.Conditional)expr;
+                pending.push(conditional.elseBranch);
+                pending.push(conditional.thenBranch);
+                pending.push(conditional.condition);
+            } else {
+                // assignments, and anything not known to be pure
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // A set of global names that can also stand for every name except the
+    // ones it lists.
+    private static class Names {
+        private boolean everything;
+        // the names in the set, or the names not in it when everything is set
+        private final Set<String> names;
+
+        Names(boolean everything) {
+            this(everything, new HashSet<>());
+        }
+
+        private Names(boolean everything, Set<String> names) {
+            this.everything = everything;
+            this.names = names;
+        }
+
+        boolean contains(String name) {
+            return everything != names.contains(name);
+        }
+
+        void add(String name) {
+            if (everything) { names.remove(name); } else { names.add(name); }
+        }
+
+        void remove(String name) {
+            if (everything) { names.add(name); } else { names.remove(name); }
+        }
+
+        void addEverything() {
+            everything = true;
+            names.clear();
+        }
+
+        void addAll(Names other) {
+            if (everything && other.everything) {
+                names.retainAll(other.names);
+            } else if (everything) {
+                names.removeAll(other.names);
+            } else if (other.everything) {
+                Set<String> missing = new HashSet<>(other.names);
+                missing.removeAll(names);
+                names.clear();
+                names.addAll(missing);
+                everything = true;
+            } else {
+                names.addAll(other.names);
+            }
+        }
+
+        Names copy() {
+            return new Names(everything, new HashSet<>(names));
+        }
+    }
+}
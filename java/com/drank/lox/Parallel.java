@@ -0,0 +1,274 @@
+package com.drank.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// Runs top level statements concurrently on the common ForkJoinPool where
+// the globals they use allow it, with the same output, globals and errors
+// as running them in order.
+//
+// The statements are split into runs of consecutive statements, a task
+// each, so that short statements do not each pay for a task. A task waits
+// for the last task before it that writes each global it reads; an
+// assignment counts as a read, since it fails unless the global is already
+// defined. Everything else may run in any order, because a running task
+// writes its globals and output to buffers of its own. The calling thread
+// commits the buffers in source order, the globals to a concurrent map
+// over the session's globals and the output to the session's, so a
+// statement sees exactly the globals that running the statements in order
+// would have shown it: those of every statement before it, once its
+// dependencies have committed, and none after it. At a runtime error the
+// writes up to the error are committed, the error is reported and the
+// statements after it are thrown away.
+//
+// Nothing is locked while tasks run. No task reads a global while a
+// commit writes it: a task reading it waits for the last writer before it
+// to commit, and a writer after it commits only once it has. The session's
+// globals are not written at all until every task is done, when the
+// committed ones are copied into them.
+class Parallel {
+    // tasks started ahead of the next one to commit, at most
+    static final int WINDOW = 256;
+    // statements per task, at most
+    static final int MAX_RUN = 64;
+
+    // stands for nil in committed, which cannot hold null
+    private static final Object NIL = new Object();
+
+    private final Session session;
+    // globals committed by this run, over the session's, which running
+    // tasks read without locking
+    private final Map<String, Object> committed = new ConcurrentHashMap<>();
+
+    private List<Stmt> statements;
+    private int run;
+    private Task[] tasks;
+    private int[] waiting;
+    private List<List<Integer>> dependents;
+
+    Parallel(Session session) {
+        this.session = session;
+    }
+
+    void run(List<Stmt> statements) {
+        this.statements = statements;
+        // enough tasks to keep every worker busy while there are statements
+        int workers = ForkJoinPool.getCommonPoolParallelism();
+        run = Math.max(1, Math.min(MAX_RUN, statements.size() / (4 * workers)));
+        int count = (statements.size() + run - 1) / run;
+        tasks = new Task[count];
+        analyze(count);
+
+        int limit = Math.min(count, WINDOW);
+        for (int i = 0; i < limit; i++) {
+            if (waiting[i] == 0) { start(i); }
+        }
+
+        try {
+            for (int i = 0; i < count; i++) {
+                // everything before i has committed, so nothing holds it back
+                Task task = tasks[i];
+                task.future.join();
+                tasks[i] = null;
+
+                if (!commit(task)) {
+                    finish(i + 1, limit);
+                    if (task.failure instanceof Error) { throw (Error)task.failure; }
+                    if (task.failure instanceof RuntimeException) { throw (RuntimeException)task.failure; }
+                    return;
+                }
+
+                for (int dependent : dependents.get(i)) {
+                    if (--waiting[dependent] == 0 && dependent < limit) { start(dependent); }
+                }
+                for (; limit < Math.min(count, i + 1 + WINDOW); limit++) {
+                    if (waiting[limit] == 0) { start(limit); }
+                }
+            }
+        } finally {
+            // no task is running any more
+            for (Map.Entry<String, Object> global : committed.entrySet()) {
+                Object value = global.getValue();
+                session.interpreter.define(global.getKey(), value == NIL ? null : value);
+            }
+        }
+    }
+
+    // Finds the task each one waits for on each global it reads.
+    private void analyze(int count) {
+        waiting = new int[count];
+        dependents = new ArrayList<>(count);
+        Map<String, Integer> lastWriter = new HashMap<>();
+        List<String> reads = new ArrayList<>();
+        List<String> writes = new ArrayList<>();
+
+        for (int i = 0; i < count; i++) {
+            dependents.add(new ArrayList<>());
+            reads.clear();
+            writes.clear();
+            for (Stmt statement : statements(i)) {
+                globals(statement, reads, writes);
+            }
+
+            // a task sees its own writes, so reads of them need no waiting
+            for (String name : reads) {
+                Integer writer = lastWriter.get(name);
+                if (writer == null) { continue; }
+                List<Integer> waiters = dependents.get(writer);
+                if (waiters.isEmpty() || waiters.get(waiters.size() - 1) != i) {
+                    waiters.add(i);
+                    waiting[i]++;
+                }
+            }
+            for (String name : writes) {
+                lastWriter.put(name, i);
+            }
+        }
+    }
+
+    // Collects the globals the statement may read and may write.
+    private static void globals(Stmt statement, List<String> reads, List<String> writes) {
+        Deque<Expr> pending = new ArrayDeque<>();
+        switch (statement.kind) {
+            case Stmt.EXPRESSION: pending.push(((Stmt.Expression)statement).expression); break;
+            case Stmt.PRINT: pending.push(((Stmt.Print)statement).expression); break;
+            case Stmt.VAR: {
+                Stmt.Var var = (Stmt.Var)statement;
+                writes.add(var.name.lexeme);
+                if (var.initializer != null) { pending.push(var.initializer); }
+                break;
+            }
+        }
+
+        while (!pending.isEmpty()) {
+            Expr expr = pending.pop();
+            switch (expr.kind) {
+                case Expr.VARIABLE:
+                    reads.add(((Expr.Variable)expr).name.lexeme);
+                    break;
+                case Expr.ASSIGN: {
+                    Expr.Assign assign = (Expr.Assign)expr;
+                    reads.add(assign.name.lexeme);
+                    writes.add(assign.name.lexeme);
+                    pending.push(assign.value);
+                    break;
+                }
+                case Expr.BINARY:
+                    pending.push(((Expr.Binary)expr).left);
+                    pending.push(((Expr.Binary)expr).right);
+                    break;
+                case Expr.GROUPING: pending.push(((Expr.Grouping)expr).expression); break;
+                case Expr.UNARY: pending.push(((Expr.Unary)expr).right); break;
+                case Expr.CONDITIONAL:
+                    pending.push(((Expr.Conditional)expr).condition);
+                    pending.push(((Expr.Conditional)expr).thenBranch);
+                    pending.push(((Expr.Conditional)expr).elseBranch);
+                    break;
+            }
+        }
+    }
+
+    private List<Stmt> statements(int task) {
+        return statements.subList(task * run, Math.min(statements.size(), (task + 1) * run));
+    }
+
+    private void start(int index) {
+        Task task = new Task(statements(index));
+        tasks[index] = task;
+        task.future = ForkJoinPool.commonPool().submit(() -> {
+            try {
+                for (Stmt statement : task.statements) {
+                    task.interpreter.execute(statement);
+                }
+            } catch (RuntimeError error) {
+                task.error = error;
+            } catch (Throwable error) {
+                task.failure = error;
+            }
+        });
+    }
+
+    // Publishes the task's globals and output, and reports its runtime
+    // error. Returns whether the statements after it should still run.
+    private boolean commit(Task task) {
+        if (task.failure != null) { return false; }
+
+        for (Map.Entry<String, Object> global : task.globals.written.entrySet()) {
+            Object value = global.getValue();
+            committed.put(global.getKey(), value == null ? NIL : value);
+        }
+
+        if (task.output.size() > 0) {
+            byte[] bytes = task.output.toByteArray();
+            session.out.write(bytes, 0, bytes.length);
+        }
+        if (task.error != null) {
+            session.runtimeError(task.error);
+            return false;
+        }
+        return true;
+    }
+
+    // Waits for the statements started from index on, whose results are
+    // not wanted, so none is left reading the globals.
+    private void finish(int index, int limit) {
+        for (int i = index; i < limit; i++) {
+            if (tasks[i] != null) { tasks[i].future.join(); }
+        }
+    }
+
+    // A run of statements with its own interpreter, whose globals and output
+    // go to buffers until it is committed.
+    private final class Task {
+        final List<Stmt> statements;
+        final Overlay globals = new Overlay();
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final Interpreter interpreter;
+        ForkJoinTask<?> future;
+        RuntimeError error;
+        Throwable failure;
+
+        Task(List<Stmt> statements) {
+            this.statements = statements;
+            this.interpreter = new Interpreter(Lox.stackSafe, new PrintStream(output),
+                                               session.interpreter.accounting, globals);
+        }
+    }
+
+    // The globals as one task sees them: its own writes over the committed
+    // ones over the session's globals.
+    private final class Overlay extends Environment {
+        final Map<String, Object> written = new HashMap<>();
+
+        @Override
+        Object get(Token name) {
+            if (written.containsKey(name.lexeme)) { return written.get(name.lexeme); }
+            Object value = committed.get(name.lexeme);
+            if (value != null) { return value == NIL ? null : value; }
+            return session.interpreter.lookup(name);
+        }
+
+        @Override
+        void assign(Token name, Object value) {
+            if (!written.containsKey(name.lexeme) && !committed.containsKey(name.lexeme)) {
+                // fails the same way if the global is not defined
+                session.interpreter.lookup(name);
+            }
+            written.put(name.lexeme, value);
+        }
+
+        @Override
+        void define(String name, Object value) {
+            written.put(name, value);
+        }
+    }
+}
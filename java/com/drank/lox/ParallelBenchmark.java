@@ -0,0 +1,130 @@
+package com.drank.lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Compares running a script in order against --parallel with the common
+// ForkJoinPool at several parallelisms.
+//
+//   java -cp build/java com.drank.lox.ParallelBenchmark [statements] [runs] [parallelism...]
+//
+// The generated script has the given number of statements (4000 by
+// default), each a long expression over a few globals defined up front, so
+// the statements do real work and only wait for the definitions. Each
+// parallelism (by default 1, 2, 4 and the number of processors) runs in a
+// JVM of its own, since the common pool's is fixed at its start. There the
+// script is parsed once and only running it is timed, in a new session
+// each time; the first runs warm up the JIT and are not counted, and the
+// median of the rest (10 by default) is reported with the speedup over
+// running in order. The speedup is bounded by the processors the JVM gets,
+// which are printed first.
+public class ParallelBenchmark {
+    private static final PrintStream NOWHERE = new PrintStream(OutputStream.nullOutputStream());
+    private static final int GLOBALS = 16;
+    private static final int TERMS = 200;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && args[0].equals("--child")) {
+            child(args[1].equals("parallel"), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            return;
+        }
+
+        int statements = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        List<Integer> parallelisms = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) { parallelisms.add(Integer.parseInt(args[i])); }
+        int processors = Runtime.getRuntime().availableProcessors();
+        if (parallelisms.isEmpty()) {
+            parallelisms.addAll(List.of(1, 2, 4));
+            if (processors > 4) { parallelisms.add(processors); }
+        }
+        System.out.println("processors: " + processors);
+
+        double sequential = runChild("sequential", 1, statements, runs);
+        report("in order", sequential, sequential);
+        for (int parallelism : parallelisms) {
+            report("parallel " + parallelism, runChild("parallel", parallelism, statements, runs), sequential);
+        }
+    }
+
+    // Runs the script in a new JVM whose common pool has the given
+    // parallelism and returns the median milliseconds it reports.
+    private static double runChild(String mode, int parallelism, int statements, int runs)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-Djava.util.concurrent.ForkJoinPool.common.parallelism=" + parallelism);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ParallelBenchmark.class.getName());
+        command.add("--child");
+        command.add(mode);
+        command.add(String.valueOf(statements));
+        command.add(String.valueOf(runs));
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        process.getOutputStream().close();
+        String out = new String(process.getInputStream().readAllBytes(), Charset.defaultCharset()).trim();
+        if (process.waitFor() != 0 || !out.startsWith("median ")) {
+            throw new IOException("The " + mode + " run failed:\n" + out);
+        }
+        return Double.parseDouble(out.substring("median ".length()));
+    }
+
+    // Child side: runs the script as a session would and reports the median
+    // milliseconds of a run.
+    private static void child(boolean parallel, int statements, int runs) {
+        List<Stmt> program = new Parser(new Scanner(generate(statements)).scanTokens()).parse();
+        for (int i = 0; i < runs; i++) { run(program, parallel); }
+
+        double[] times = new double[runs];
+        for (int i = 0; i < runs; i++) { times[i] = run(program, parallel); }
+        Arrays.sort(times);
+        System.out.println("median " + times[runs / 2]);
+    }
+
+    private static double run(List<Stmt> program, boolean parallel) {
+        Session session = new Session(NOWHERE, NOWHERE);
+        Session previous = Lox.attach(session);
+        try {
+            long start = System.nanoTime();
+            if (parallel) {
+                new Parallel(session).run(program);
+            } else {
+                session.interpreter.interpret(program);
+            }
+            double millis = (System.nanoTime() - start) / 1e6;
+            if (session.exitCode() != 0) { throw new IllegalStateException("The script failed."); }
+            return millis;
+        } finally {
+            Lox.attach(previous);
+        }
+    }
+
+    private static void report(String name, double millis, double sequential) {
+        System.out.printf("%-12s %9.2f ms  %5.2fx%n", name, millis, sequential / millis);
+    }
+
+    private static String generate(int statements) {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < GLOBALS; i++) {
+            source.append("var g").append(i).append(" = ").append(i + 1).append(";\n");
+        }
+        for (int i = 0; i < statements; i++) {
+            source.append("var r").append(i).append(" = 0");
+            for (int term = 0; term < TERMS; term++) {
+                source.append(term % 2 == 0 ? " + " : " - ")
+                      .append("g").append((i + term) % GLOBALS)
+                      .append(" * ").append(term % 7 + 1);
+            }
+            source.append(";\n");
+        }
+        return source.toString();
+    }
+}
@@ -1,7 +1,10 @@
 package com.drank.lox;
 
 import java.util.List;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.function.Consumer;
 
 import com.drank.lox.TokenType;
 
@@ -9,26 +12,50 @@ class Parser {
     private static class ParseError extends RuntimeException {}
 
     private final List<Token> tokens;
+    private final boolean stackSafe;
+    private final HashConsing nodes;
     private int current;
 
     Parser(List<Token> tokens) {
+        this(tokens, false);
+    }
+
+    Parser(List<Token> tokens, boolean stackSafe) {
+        this(tokens, stackSafe, false);
+    }
+
+    // A stack safe parser keeps its own stack of pending productions instead
+    // of recursing, so expression nesting depth is bounded only by the heap.
+    // With hashCons, identical expressions share one node and constant ones
+    // are folded, see HashConsing.
+    Parser(List<Token> tokens, boolean stackSafe, boolean hashCons) {
         this.tokens = tokens;
+        this.stackSafe = stackSafe;
+        this.nodes = hashCons ? new HashConsing() : null;
     }
 
     // program -> declaration* EOF ;
     List<Stmt> parse() {
         List<Stmt> statements = new ArrayList<>();
+        parse(statements::add);
+        return statements;
+    }
+
+    // Hands each declaration to statements as soon as it is parsed, null
+    // for one with a syntax error.
+    void parse(Consumer<Stmt> statements) {
         while (!isAtEnd()) {
-            statements.add(declaration());
+            statements.accept(declaration());
         }
-        return statements;
     }
 
     // declaration -> varDecl | statement;
     private Stmt declaration() {
+        int line = peek().line;
         try {
-            if (match(TokenType.VAR)) { return varDeclaration(); }
-            return statement();
+            Stmt stmt = match(TokenType.VAR) ? varDeclaration() : statement();
+            stmt.line = line;
+            return stmt;
         } catch (ParseError error) {
             synchronize();
             return null;
@@ -70,17 +97,18 @@ class Parser {
 
     // expression -> assignment ;
     private Expr expression() {
+        if (stackSafe) { return expressionIterative(); }
         return assignment();
     }
 
-    // assignment -> IDENTIFIER "=" assignment
-    //            |  comma ;
+    // assignment -> IDENTIFIER "=" comma
+    //            |  equality ;
     private Expr assignment() {
-        Expr expr = equality();
+        Expr expr = parsePrecedence(EQUALITY);
 
         if (match(TokenType.EQUAL)) {
             Token equals = previous();
-            Expr value = comma();
+            Expr value = parsePrecedence(COMMA);
 
             if (expr instanceof Expr.Variable) {
                 Token name = ((Expr.Variable)expr).name;
@@ -93,107 +121,91 @@ class Parser {
         return expr;
     }
 
-    // expression -> comma ;
-
-    // comma -> conditional ("," conditional)* ;
-    private Expr comma() {
-        Expr expr = conditional();
-
-        while (match(TokenType.COMMA)) {
-            Token operator = previous();
-            Expr right = conditional();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
+    // Binding powers for the precedence climbing parser, lowest first.
+    //
+    // comma       -> conditional ("," conditional)* ;
+    // conditional -> equality ("?" expression ":" conditional)? ;
+    // equality    -> comparison ( ("!=" | "==") comparison )* ;
+    // comparison  -> term ( (">" | ">=" | "<" | "<=") term )* ;
+    // term        -> factor ( ("-" | "+") factor )* ;
+    // factor      -> unary ( ("/" | "*") unary )* ;
+    // unary       -> ("!" | "-") unary | primary ;
+    private static final int NONE = 0;
+    private static final int COMMA = 1;
+    private static final int CONDITIONAL = 2;
+    private static final int EQUALITY = 3;
+    private static final int COMPARISON = 4;
+    private static final int TERM = 5;
+    private static final int FACTOR = 6;
+    private static final int UNARY = 7;
+
+    // precedence of each token when it appears as an infix operator
+    private static final int[] infixPrecedence = new int[TokenType.values().length];
+
+    // precedence of the operand skipped by the error production for a
+    // binary operator that is missing its left-hand operand
+    private static final int[] missingOperandPrecedence = new int[TokenType.values().length];
+
+    static {
+        infixPrecedence[TokenType.COMMA.ordinal()] = COMMA;
+        infixPrecedence[TokenType.QUESTION.ordinal()] = CONDITIONAL;
+        infixPrecedence[TokenType.BANG_EQUAL.ordinal()] = EQUALITY;
+        infixPrecedence[TokenType.EQUAL_EQUAL.ordinal()] = EQUALITY;
+        infixPrecedence[TokenType.GREATER.ordinal()] = COMPARISON;
+        infixPrecedence[TokenType.GREATER_EQUAL.ordinal()] = COMPARISON;
+        infixPrecedence[TokenType.LESSER.ordinal()] = COMPARISON;
+        infixPrecedence[TokenType.LESSER_EQUAL.ordinal()] = COMPARISON;
+        infixPrecedence[TokenType.MINUS.ordinal()] = TERM;
+        infixPrecedence[TokenType.PLUS.ordinal()] = TERM;
+        infixPrecedence[TokenType.SLASH.ordinal()] = FACTOR;
+        infixPrecedence[TokenType.STAR.ordinal()] = FACTOR;
+
+        missingOperandPrecedence[TokenType.BANG_EQUAL.ordinal()] = EQUALITY;
+        missingOperandPrecedence[TokenType.EQUAL_EQUAL.ordinal()] = EQUALITY;
+        missingOperandPrecedence[TokenType.GREATER.ordinal()] = COMPARISON;
+        missingOperandPrecedence[TokenType.GREATER_EQUAL.ordinal()] = COMPARISON;
+        missingOperandPrecedence[TokenType.LESSER.ordinal()] = COMPARISON;
+        missingOperandPrecedence[TokenType.LESSER_EQUAL.ordinal()] = COMPARISON;
+        missingOperandPrecedence[TokenType.PLUS.ordinal()] = TERM;
+        missingOperandPrecedence[TokenType.SLASH.ordinal()] = FACTOR;
+        missingOperandPrecedence[TokenType.STAR.ordinal()] = FACTOR;
     }
 
-    // conditional -> equality ("?" expression ":" expression)?
-    private Expr conditional() {
-        Expr expr = equality();
-
-        if (match(TokenType.QUESTION)) {
-            Expr thenBranch = expression();
-
-            consume(TokenType.COLON, "Expect ':' after expression.");
-
-            // can not be an expression here or else you can not have a comma
-            // after the conditional
-            // 1 ? 2 : 3, 4  => (, (conditional 1.0 2.0 3.0) 4.0)
-            // this is wrong => (, (conditional 1.0 2.0 (, 3.0 4.0)))
-            Expr elseBranch = conditional();
-
-            expr = new Expr.Conditional(expr, thenBranch, elseBranch);
-        }
-
-        return expr;
-    }
-
-    // equality -> comparison ( ("!=" | "==") comparison )* ;
-    private Expr equality() {
-        Expr expr = comparison();
-
-        while (match(TokenType.BANG_EQUAL, TokenType.EQUAL_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    // comparison -> term ( (">" | ">=" | "<" | "<=") term )* ;
-    private Expr comparison() {
-        Expr expr = term();
-
-        while (match(TokenType.GREATER, TokenType.GREATER_EQUAL,
-                     TokenType.LESSER, TokenType.LESSER_EQUAL)) {
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    // term -> factor ( ("-" | "+") factor )* ;
-    private Expr term() {
-        Expr expr = factor();
-
-        while (match(TokenType.MINUS, TokenType.PLUS)) {
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    // factor -> unary ( ("/" | "*") unary )* ;
-    private Expr factor() {
-        Expr expr = unary();
-
-        while (match(TokenType.SLASH, TokenType.STAR)) {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
+    // Parses an expression whose infix operators all bind at least as
+    // tightly as precedence. Binary operators are left associative, the
+    // conditional is right associative through its else branch.
+    private Expr parsePrecedence(int precedence) {
+        Expr expr = prefix();
+
+        for (;;) {
+            TokenType type = peek().type;
+            int infix = infixPrecedence[type.ordinal()];
+            if (infix == NONE || infix < precedence) { break; }
+
+            Token operator = advance();
+            if (type == TokenType.QUESTION) {
+                Expr thenBranch = expression();
+
+                consume(TokenType.COLON, "Expect ':' after expression.");
+
+                // can not be an expression here or else you can not have a comma
+                // after the conditional
+                // 1 ? 2 : 3, 4  => (, (conditional 1.0 2.0 3.0) 4.0)
+                // this is wrong => (, (conditional 1.0 2.0 (, 3.0 4.0)))
+                Expr elseBranch = parsePrecedence(CONDITIONAL);
+
+                expr = node(new Expr.Conditional(expr, thenBranch, elseBranch));
+            } else {
+                Expr right = parsePrecedence(infix + 1);
+                expr = node(new Expr.Binary(expr, operator, right));
+            }
         }
 
         return expr;
     }
 
-    // unary -> ("!" | "-") unary
-    //        -> | primary ;
-    private Expr unary() {
-        if (match(TokenType.BANG, TokenType.MINUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
-        }
-
-        return primary();
-    }
-
+    // prefix  -> ("!" | "-") unary
+    //         |  primary ;
     // primary -> NUMBER | STRING | "true" | "false" | "nil" ;
     //         -> | "(" expression ")" | IDENTIFIER;
     //         Error productions ...
@@ -201,56 +213,237 @@ class Parser {
     //         -> ("<", "<=", ">", ">=") comparison ;
     //         -> ("+") term ;
     //         -> ("/", "*") factor ;
-    private Expr primary() {
-        if (match(TokenType.NUMBER, TokenType.STRING)) {
-            return new Expr.Literal(previous().literal);
-        }
-        if (match(TokenType.IDENTIFIER)) { return new Expr.Variable(previous()); }
-        if (match(TokenType.TRUE)) { return new Expr.Literal(true); }
-        if (match(TokenType.FALSE)) { return new Expr.Literal(false); }
-        if (match(TokenType.NIL)) { return new Expr.Literal(null); }
-
-        if (match(TokenType.LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
-            return new Expr.Grouping(expr);
+    private Expr prefix() {
+        Token token = peek();
+
+        switch (token.type) {
+            case NUMBER:
+            case STRING:
+                advance();
+                return node(new Expr.Literal(token.literal));
+            case IDENTIFIER:
+                advance();
+                return node(new Expr.Variable(token));
+            case TRUE:
+                advance();
+                return node(new Expr.Literal(true));
+            case FALSE:
+                advance();
+                return node(new Expr.Literal(false));
+            case NIL:
+                advance();
+                return node(new Expr.Literal(null));
+            case LEFT_PAREN: {
+                advance();
+                Expr expr = expression();
+                consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
+                return node(new Expr.Grouping(expr));
+            }
+            case BANG:
+            case MINUS: {
+                advance();
+                Expr right = parsePrecedence(UNARY);
+                return node(new Expr.Unary(token, right));
+            }
         }
 
         // Error productions
-        if (match(TokenType.BANG_EQUAL, TokenType.EQUAL_EQUAL)) {
-            error(previous(), "Missing left-hand operand.");
-            equality();
+        int missing = missingOperandPrecedence[token.type.ordinal()];
+        if (missing != NONE) {
+            advance();
+            error(token, "Missing left-hand operand.");
+            parsePrecedence(missing);
             return null;
         }
 
-        if (match(TokenType.LESSER, TokenType.LESSER_EQUAL,
-                  TokenType.GREATER, TokenType.GREATER_EQUAL)) {
-            error(previous(), "Missing left-hand operand.");
-            comparison();
-            return null;
-        }
+        throw error(token, "Expect expression.");
+    }
 
-        if (match(TokenType.PLUS)) {
-            error(previous(), "Missing left-hand operand.");
-            term();
-            return null;
+    // States of a pending production in expressionIterative(). Each one
+    // mirrors a return point in assignment(), parsePrecedence() or prefix().
+    private static final int EXPRESSION = 0;
+    private static final int ASSIGN_TARGET = 1;
+    private static final int ASSIGN_VALUE = 2;
+    private static final int PREFIX = 3;
+    private static final int GROUP_CLOSE = 4;
+    private static final int UNARY_OPERAND = 5;
+    private static final int MISSING_OPERAND = 6;
+    private static final int INFIX = 7;
+    private static final int BINARY_RIGHT = 8;
+    private static final int CONDITIONAL_THEN = 9;
+    private static final int CONDITIONAL_ELSE = 10;
+
+    private static final class Frame {
+        int state;
+        final int precedence;
+        Expr left;
+        Expr middle;
+        Token token;
+
+        Frame(int state, int precedence) {
+            this.state = state;
+            this.precedence = precedence;
         }
+    }
 
-        if (match(TokenType.SLASH, TokenType.STAR)) {
-            error(previous(), "Missing left-hand operand.");
-            factor();
-            return null;
+    // Same grammar as assignment(), driven by an explicit stack of frames.
+    // A frame is pushed where the recursive parser makes a call and the
+    // result of the call is handed back to the frame below in expr.
+    private Expr expressionIterative() {
+        Deque<Frame> stack = new ArrayDeque<>();
+        stack.push(new Frame(EXPRESSION, NONE));
+        Expr expr = null;
+
+        while (!stack.isEmpty()) {
+            Frame frame = stack.peek();
+
+            switch (frame.state) {
+                case EXPRESSION:
+                    frame.state = ASSIGN_TARGET;
+                    stack.push(new Frame(PREFIX, EQUALITY));
+                    break;
+
+                case ASSIGN_TARGET:
+                    if (match(TokenType.EQUAL)) {
+                        frame.left = expr;
+                        frame.token = previous();
+                        frame.state = ASSIGN_VALUE;
+                        stack.push(new Frame(PREFIX, COMMA));
+                    } else {
+                        stack.pop();
+                    }
+                    break;
+
+                case ASSIGN_VALUE:
+                    if (frame.left instanceof Expr.Variable) {
+                        Token name = ((Expr.Variable)frame.left).name;
+                        expr = new Expr.Assign(name, expr);
+                    } else {
+                        error(frame.token, "Invalid assignment target.");
+                        expr = frame.left;
+                    }
+                    stack.pop();
+                    break;
+
+                case PREFIX: {
+                    Token token = peek();
+                    frame.state = INFIX;
+
+                    switch (token.type) {
+                        case NUMBER:
+                        case STRING:
+                            advance();
+                            expr = node(new Expr.Literal(token.literal));
+                            continue;
+                        case IDENTIFIER:
+                            advance();
+                            expr = node(new Expr.Variable(token));
+                            continue;
+                        case TRUE:
+                            advance();
+                            expr = node(new Expr.Literal(true));
+                            continue;
+                        case FALSE:
+                            advance();
+                            expr = node(new Expr.Literal(false));
+                            continue;
+                        case NIL:
+                            advance();
+                            expr = node(new Expr.Literal(null));
+                            continue;
+                        case LEFT_PAREN:
+                            advance();
+                            frame.state = GROUP_CLOSE;
+                            stack.push(new Frame(EXPRESSION, NONE));
+                            continue;
+                        case BANG:
+                        case MINUS:
+                            advance();
+                            frame.token = token;
+                            frame.state = UNARY_OPERAND;
+                            stack.push(new Frame(PREFIX, UNARY));
+                            continue;
+                    }
+
+                    // Error productions
+                    int missing = missingOperandPrecedence[token.type.ordinal()];
+                    if (missing != NONE) {
+                        advance();
+                        error(token, "Missing left-hand operand.");
+                        frame.state = MISSING_OPERAND;
+                        stack.push(new Frame(PREFIX, missing));
+                        break;
+                    }
+
+                    throw error(token, "Expect expression.");
+                }
+
+                case GROUP_CLOSE:
+                    consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
+                    expr = node(new Expr.Grouping(expr));
+                    frame.state = INFIX;
+                    break;
+
+                case UNARY_OPERAND:
+                    expr = node(new Expr.Unary(frame.token, expr));
+                    frame.state = INFIX;
+                    break;
+
+                case MISSING_OPERAND:
+                    expr = null;
+                    frame.state = INFIX;
+                    break;
+
+                case INFIX: {
+                    TokenType type = peek().type;
+                    int infix = infixPrecedence[type.ordinal()];
+                    if (infix == NONE || infix < frame.precedence) {
+                        stack.pop();
+                        break;
+                    }
+
+                    frame.left = expr;
+                    frame.token = advance();
+                    if (type == TokenType.QUESTION) {
+                        frame.state = CONDITIONAL_THEN;
+                        stack.push(new Frame(EXPRESSION, NONE));
+                    } else {
+                        frame.state = BINARY_RIGHT;
+                        stack.push(new Frame(PREFIX, infix + 1));
+                    }
+                    break;
+                }
+
+                case BINARY_RIGHT:
+                    expr = node(new Expr.Binary(frame.left, frame.token, expr));
+                    frame.state = INFIX;
+                    break;
+
+                case CONDITIONAL_THEN:
+                    consume(TokenType.COLON, "Expect ':' after expression.");
+                    frame.middle = expr;
+                    frame.state = CONDITIONAL_ELSE;
+                    stack.push(new Frame(PREFIX, CONDITIONAL));
+                    break;
+
+                case CONDITIONAL_ELSE:
+                    expr = node(new Expr.Conditional(frame.left, frame.middle, expr));
+                    frame.state = INFIX;
+                    break;
+            }
         }
 
-        throw error(peek(), "Expect expression.");
+        return expr;
     }
 
-    private boolean match(TokenType... types) {
-        for (TokenType type : types) {
-            if (check(type)) {
-                advance();
-                return true;
-            }
+    private Expr node(Expr expr) {
+        return nodes == null ? expr : nodes.intern(expr);
+    }
+
+    private boolean match(TokenType type) {
+        if (check(type)) {
+            advance();
+            return true;
         }
 
         return false;
@@ -274,10 +467,17 @@ class Parser {
         return tokens.get(current);
     }
 
-    private Token previous() {
+    // The last token consumed, which after parse() has handed over a
+    // statement is the one ending it.
+    Token previous() {
         return tokens.get(current - 1);
     }
 
+    // The number of tokens consumed so far.
+    int consumed() {
+        return current;
+    }
+
     private Token consume(TokenType type, String message) {
         if (check(type)) { return advance(); }
 
@@ -0,0 +1,385 @@
+package com.drank.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+// End to end performance regression suite. Generates Lox programs from a
+// few parameters, runs each one through Lox in a fresh JVM, checks its
+// output against a golden file and records wall time, peak RSS and GC
+// activity:
+//
+//   perfsuite [--runs n] [--flags "lox flags"] [--golden dir] [--update-golden]
+//             [--report file] [--baseline file] [--threshold [metric=]fraction]...
+//             [workload...]
+//
+// The report is a properties file with one <workload>.<metric> entry per
+// measurement, the median over the runs. Given a baseline report, any
+// metric more than its threshold (0.10 unless overridden) above the
+// baseline is a regression, unless it rose by no more than the noise of
+// that metric: a couple of collections or a few milliseconds of GC, which
+// would otherwise fail every workload that barely collects. Exits with 1
+// on a regression or an output mismatch.
+public class PerfSuite {
+    static final String[] METRICS = { "wall_ms", "peak_rss_kb", "gc_count", "gc_ms" };
+    // the largest rise of a metric that is still noise, 0 where not listed
+    private static final Map<String, Double> NOISE = Map.of("gc_count", 2.0, "gc_ms", 20.0);
+
+    // A generated program. Its size is set by
+    //   globals: number of global variables, each computed from the last
+    //   depth:   nesting depth of the arithmetic expressions
+    //   strings: statements appending to a string
+    //   prints:  print statements
+    private static class Workload {
+        final String name;
+        final int globals;
+        final int depth;
+        final int strings;
+        final int prints;
+
+        Workload(String name, int globals, int depth, int strings, int prints) {
+            this.name = name;
+            this.globals = globals;
+            this.depth = depth;
+            this.strings = strings;
+            this.prints = prints;
+        }
+
+        String source() {
+            StringBuilder source = new StringBuilder();
+
+            source.append("var g0 = 0;\n");
+            for (int i = 1; i < globals; i++) {
+                source.append("var g").append(i).append(" = g").append(i - 1)
+                      .append(" + ").append(i % 10).append(";\n");
+            }
+            if (globals > 0) {
+                source.append("print g").append(globals - 1).append(";\n");
+            }
+
+            if (depth > 0) {
+                for (int line = 0; line < 100; line++) {
+                    source.append("print ");
+                    for (int i = 0; i < depth; i++) { source.append("("); }
+                    source.append(line);
+                    for (int i = 0; i < depth; i++) {
+                        source.append(i % 3 == 0 ? " + " : i % 3 == 1 ? " * " : " - ")
+                              .append(i % 7 + 1).append(")");
+                    }
+                    source.append(" / 1000;\n");
+                }
+            }
+
+            source.append("var s = \"\";\n");
+            for (int i = 0; i < strings; i++) {
+                source.append("s = s + \"").append((char)('a' + i % 26)).append("\";\n");
+            }
+            if (strings > 0) {
+                source.append("print s;\n");
+            }
+
+            for (int i = 0; i < prints; i++) {
+                source.append("print \"line \" + ").append(i).append(";\n");
+            }
+
+            return source.toString();
+        }
+    }
+
+    private static final Map<String, Workload> workloads = new LinkedHashMap<>();
+
+    static {
+        add(new Workload("globals", 50000, 0, 0, 0));
+        add(new Workload("depth", 0, 400, 0, 0));
+        add(new Workload("strings", 0, 0, 20000, 0));
+        add(new Workload("prints", 0, 0, 0, 5000));
+        add(new Workload("mixed", 5000, 20, 2000, 1000));
+    }
+
+    private static void add(Workload workload) {
+        workloads.put(workload.name, workload);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && args[0].equals("--measure")) {
+            measure(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        int runs = 3;
+        List<String> flags = new ArrayList<>();
+        Path golden = Paths.get("perf", "golden");
+        boolean updateGolden = false;
+        Path report = null;
+        Path baseline = null;
+        double threshold = 0.10;
+        Map<String, Double> thresholds = new HashMap<>();
+        List<Workload> selected = new ArrayList<>();
+
+        for (int arg = 0; arg < args.length; arg++) {
+            switch (args[arg]) {
+                case "--runs": runs = Integer.parseInt(args[++arg]); break;
+                case "--flags":
+                    for (String flag : args[++arg].trim().split("\\s+")) {
+                        if (!flag.isEmpty()) { flags.add(flag); }
+                    }
+                    break;
+                case "--golden": golden = Paths.get(args[++arg]); break;
+                case "--update-golden": updateGolden = true; break;
+                case "--report": report = Paths.get(args[++arg]); break;
+                case "--baseline": baseline = Paths.get(args[++arg]); break;
+                case "--threshold": {
+                    String value = args[++arg];
+                    int equals = value.indexOf('=');
+                    if (equals < 0) {
+                        threshold = Double.parseDouble(value);
+                    } else {
+                        thresholds.put(value.substring(0, equals),
+                                       Double.parseDouble(value.substring(equals + 1)));
+                    }
+                    break;
+                }
+                default: {
+                    Workload workload = workloads.get(args[arg]);
+                    if (workload == null) {
+                        System.err.println("Unknown workload " + args[arg] + ", expected one of "
+                                           + workloads.keySet() + ".");
+                        System.exit(64);
+                    }
+                    selected.add(workload);
+                }
+            }
+        }
+        if (selected.isEmpty()) { selected.addAll(workloads.values()); }
+
+        Map<String, Double> results = new TreeMap<>();
+        boolean failed = false;
+
+        for (Workload workload : selected) {
+            Path script = Files.createTempFile("perfsuite-" + workload.name, ".lox");
+            try {
+                Files.write(script, workload.source().getBytes(Charset.defaultCharset()));
+
+                Map<String, List<Double>> samples = new HashMap<>();
+                for (int i = 0; i < runs; i++) {
+                    Child child = runChild(script, flags);
+                    if (!checkOutput(workload, child.out, golden, updateGolden && i == 0)) {
+                        failed = true;
+                    }
+                    for (String metric : METRICS) {
+                        samples.computeIfAbsent(metric, key -> new ArrayList<>())
+                               .add(child.metrics.get(metric));
+                    }
+                }
+
+                for (String metric : METRICS) {
+                    results.put(workload.name + "." + metric, median(samples.get(metric)));
+                }
+                System.out.printf("%-8s %10.1f ms %10.0f kB %5.0f gcs %8.1f gc ms%n", workload.name,
+                                  results.get(workload.name + ".wall_ms"),
+                                  results.get(workload.name + ".peak_rss_kb"),
+                                  results.get(workload.name + ".gc_count"),
+                                  results.get(workload.name + ".gc_ms"));
+            } finally {
+                Files.delete(script);
+            }
+        }
+
+        if (report != null) {
+            Properties properties = new Properties();
+            for (Map.Entry<String, Double> result : results.entrySet()) {
+                properties.setProperty(result.getKey(), Double.toString(result.getValue()));
+            }
+            try (Writer writer = Files.newBufferedWriter(report)) {
+                properties.store(writer, "jlox perfsuite" + (flags.isEmpty() ? "" : " " + flags));
+            }
+        }
+
+        if (baseline != null && !compare(results, baseline, threshold, thresholds)) {
+            failed = true;
+        }
+
+        System.exit(failed ? 1 : 0);
+    }
+
+    private static class Child {
+        final byte[] out;
+        final Map<String, Double> metrics;
+
+        Child(byte[] out, Map<String, Double> metrics) {
+            this.out = out;
+            this.metrics = metrics;
+        }
+    }
+
+    // Runs one script in a new JVM under --measure. The script's output is
+    // the child's stdout, its metrics are the child's last stderr line.
+    private static Child runChild(Path script, List<String> flags)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(PerfSuite.class.getName());
+        command.add("--measure");
+        command.add(script.toString());
+        command.addAll(flags);
+
+        Process process = new ProcessBuilder(command).start();
+        process.getOutputStream().close();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        Thread errReader = new Thread(() -> copy(process.getErrorStream(), err));
+        errReader.start();
+        byte[] out = process.getInputStream().readAllBytes();
+        process.waitFor();
+        errReader.join();
+
+        String[] lines = err.toString().trim().split("\n");
+        String last = lines[lines.length - 1];
+        if (!last.startsWith("metrics ")) {
+            throw new IOException("No metrics from " + script + ":\n" + err);
+        }
+
+        Map<String, Double> metrics = new HashMap<>();
+        for (String field : last.substring("metrics ".length()).split(" ")) {
+            int equals = field.indexOf('=');
+            metrics.put(field.substring(0, equals), Double.parseDouble(field.substring(equals + 1)));
+        }
+        return new Child(out, metrics);
+    }
+
+    private static void copy(InputStream in, ByteArrayOutputStream out) {
+        try {
+            in.transferTo(out);
+        } catch (IOException e) {
+            // the child is gone, whatever it wrote is all there is
+        }
+    }
+
+    // Child side: runs the script like jlox does and reports metrics.
+    private static void measure(String[] args) throws IOException {
+        Path script = Paths.get(args[0]);
+        for (int arg = 1; arg < args.length; arg++) {
+            switch (args[arg]) {
+                case "--stack-safe": Lox.stackSafe = true; break;
+                case "--flat": Lox.flat = true; break;
+                case "--optimize": Lox.optimize = true; break;
+                case "--pipeline": Lox.pipeline = true; break;
+                case "--fast-scan": Lox.fastScan = true; break;
+                case "--infer-types": Lox.inferTypes = true; break;
+                case "--parallel": Lox.parallel = true; break;
+                case "--hash-cons": Lox.hashCons = true; break;
+                default:
+                    System.err.println("Unsupported flag " + args[arg] + ".");
+                    System.exit(64);
+            }
+        }
+
+        long start = System.nanoTime();
+        String source = new String(Files.readAllBytes(script), Charset.defaultCharset());
+        Session session = new Session(new PrintStream(System.out, false), System.err);
+        session.run(source);
+        session.out.flush();
+        double wall = (System.nanoTime() - start) / 1e6;
+
+        long gcCount = 0;
+        long gcTime = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(gc.getCollectionCount(), 0);
+            gcTime += Math.max(gc.getCollectionTime(), 0);
+        }
+
+        System.err.printf("metrics wall_ms=%.3f peak_rss_kb=%d gc_count=%d gc_ms=%d%n",
+                          wall, peakRss(), gcCount, gcTime);
+        System.exit(session.exitCode());
+    }
+
+    // VmHWM from /proc, or 0 where it is not available.
+    private static long peakRss() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException e) {
+            // not on Linux
+        }
+        return 0;
+    }
+
+    private static boolean checkOutput(Workload workload, byte[] out, Path golden, boolean update)
+            throws IOException {
+        Path file = golden.resolve(workload.name + ".out");
+        if (update) {
+            Files.createDirectories(golden);
+            Files.write(file, out);
+            return true;
+        }
+        if (!Files.exists(file)) {
+            System.err.println(workload.name + ": no golden output " + file
+                               + ", run with --update-golden.");
+            return false;
+        }
+        if (!Arrays.equals(Files.readAllBytes(file), out)) {
+            System.err.println(workload.name + ": output differs from " + file + ".");
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean compare(Map<String, Double> results, Path baseline,
+                                   double threshold, Map<String, Double> thresholds)
+            throws IOException {
+        Properties base = new Properties();
+        try (Reader reader = Files.newBufferedReader(baseline)) {
+            base.load(reader);
+        }
+
+        boolean ok = true;
+        for (Map.Entry<String, Double> result : results.entrySet()) {
+            String value = base.getProperty(result.getKey());
+            if (value == null) { continue; }
+
+            String metric = result.getKey().substring(result.getKey().indexOf('.') + 1);
+            double allowed = thresholds.getOrDefault(metric, threshold);
+            double before = Double.parseDouble(value);
+            double now = result.getValue();
+
+            if (now - before <= NOISE.getOrDefault(metric, 0.0) || now <= before * (1 + allowed)) {
+                continue;
+            }
+            // a rise from zero has no meaningful ratio
+            String rise = before == 0 ? "up from 0" : String.format("+%.0f%%", (now / before - 1) * 100);
+            System.err.printf("REGRESSION %s: %.1f -> %.1f (%s, allowed %.0f%%)%n",
+                              result.getKey(), before, now, rise, allowed * 100);
+            ok = false;
+        }
+        return ok;
+    }
+
+    private static double median(List<Double> values) {
+        List<Double> sorted = new ArrayList<>(values);
+        sorted.sort(null);
+        int middle = sorted.size() / 2;
+        if (sorted.size() % 2 == 1) { return sorted.get(middle); }
+        return (sorted.get(middle - 1) + sorted.get(middle)) / 2;
+    }
+}
@@ -0,0 +1,344 @@
+package com.drank.lox;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+
+// Runs a script with scanning, parsing and execution overlapped. A scanner
+// thread feeds tokens to a parser thread, which feeds each top level
+// statement to the calling thread to execute as soon as it is parsed, so
+// output starts before the end of the script is even scanned. Both queues
+// are bounded, so a fast scanner or parser waits rather than running
+// ahead through the whole script.
+//
+// Execution stops at the first syntax error, as it does when the script is
+// parsed up front, but the statements before it have already run. The
+// token stream records where the scanner's first error was, and the parser
+// hands on a null in place of the first statement with a syntax error or
+// a scanning error in it, so exactly the statements before the error run
+// however far ahead the other threads are. Scanning and parsing go on to
+// report the remaining syntax errors. Execution also stops at a runtime
+// error, and a syntax error reported after one still makes the exit
+// status 65.
+class Pipeline {
+    static final int TOKEN_CAPACITY = 4096;
+    static final int BATCH_CAPACITY = 16;
+    static final int MAX_BATCH = 64;
+
+    // Marks the end of the statements.
+    private static final List<Stmt> END = List.of();
+
+    private final Session session;
+    private final TokenStream tokens = new TokenStream(TOKEN_CAPACITY);
+    private final BlockingQueue<List<Stmt>> batches = new ArrayBlockingQueue<>(BATCH_CAPACITY);
+
+    // Set by the parser thread once it has handed on the error marker.
+    private boolean failed = false;
+
+    // Statements are handed over in batches, the first of one statement so
+    // that it runs straight away, each after that twice as large up to
+    // MAX_BATCH, so the executing thread is not woken for every statement.
+    private List<Stmt> batch = new ArrayList<>();
+    private int batchSize = 1;
+
+    // Types of globals carried from one statement to the next.
+    private final TypeInference types = new TypeInference();
+
+    // The first error thrown by the scanner or parser thread.
+    private volatile Throwable failure = null;
+
+    // Set when the parsed statements go over the AST quota. Parsing stops,
+    // and the error is reported once the statements before it have run.
+    private volatile RuntimeError quotaError = null;
+
+    Pipeline(Session session) {
+        this.session = session;
+    }
+
+    // Returns the parsed statements, or null if there were syntax errors.
+    List<Stmt> run(String source) {
+        Thread scanner = start("lox-scanner", () -> {
+            try {
+                new Scanner(source, tokens, Lox.fastScan) {
+                    @Override
+                    void error(int line, String message) {
+                        super.error(line, message);
+                        tokens.markError();
+                    }
+                }.scanTokens();
+            } catch (Throwable error) {
+                fail(error);
+                tokens.cancel();
+            }
+        });
+        Thread parser = start("lox-parser", () -> {
+            try {
+                Parser statementParser = new Parser(tokens, Lox.stackSafe, Lox.hashCons);
+                statementParser.parse(statement -> {
+                    // nothing after the first error runs
+                    if (failed) { return; }
+                    if (statement == null || tokens.failedBefore(statementParser.consumed())) {
+                        fail();
+                        return;
+                    }
+                    session.interpreter.accounting.ast(List.of(statement), statementParser.previous());
+                    batch.add(statement);
+                    if (batch.size() >= batchSize) {
+                        put(batch);
+                        batch = new ArrayList<>();
+                        batchSize = Math.min(batchSize * 2, MAX_BATCH);
+                    }
+                });
+                // a scanning error after the last statement
+                if (!failed && tokens.failed()) { fail(); }
+            } catch (RuntimeError error) {
+                quotaError = error;
+            } catch (Throwable error) {
+                fail(error);
+            } finally {
+                // let a scanner still waiting to append give up
+                tokens.cancel();
+                try {
+                    if (!batch.isEmpty()) { put(batch); }
+                    put(END);
+                } catch (CancellationException error) {
+                    // the executing thread has given up on us
+                }
+            }
+        });
+
+        List<Stmt> parsed = new ArrayList<>();
+        boolean stopped = false;
+        // a runtime error in this run, not one from an earlier line of the
+        // REPL, which the session still remembers
+        boolean failed = false;
+        boolean finished = false;
+        try {
+            for (;;) {
+                List<Stmt> next = batches.take();
+                if (next == END) { break; }
+                for (Stmt statement : next) {
+                    // the error marker; a runtime error is raised on this
+                    // thread, so both stop at the same statement every run
+                    if (statement == null) { stopped = true; }
+                    if (stopped) { break; }
+                    parsed.add(statement);
+                    if (!execute(statement)) {
+                        failed = true;
+                        stopped = true;
+                    }
+                }
+            }
+            finished = true;
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while running the script.");
+        } finally {
+            if (!finished) {
+                scanner.interrupt();
+                parser.interrupt();
+            }
+        }
+
+        join(scanner);
+        join(parser);
+        if (failure instanceof Error) { throw (Error)failure; }
+        if (failure instanceof RuntimeException) { throw (RuntimeException)failure; }
+        if (quotaError != null && !session.hadError && !failed) {
+            session.runtimeError(quotaError);
+        }
+
+        return session.hadError ? null : parsed;
+    }
+
+    // Returns whether the statement ran without a runtime error.
+    private boolean execute(Stmt statement) {
+        List<Stmt> program = List.of(statement);
+        if (Lox.inferTypes) { types.infer(program); }
+        if (session.interpreter.debugger != null) {
+            program = session.interpreter.debugger.instrument(program);
+        }
+        if (Lox.flat) {
+            return new FlatInterpreter(session.interpreter).interpret(FlatAst.encode(program));
+        }
+        return session.interpreter.interpret(program);
+    }
+
+    // Starts a thread reporting errors to this session. It is a daemon so
+    // that one blocked on a queue nobody reads cannot keep the JVM alive.
+    private Thread start(String name, Runnable body) {
+        Thread thread = new Thread(() -> {
+            Lox.attach(session);
+            body.run();
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    // Hands on the error marker, straight away so the executing thread
+    // does not wait on a batch that is not full.
+    private void fail() {
+        failed = true;
+        batch.add(null);
+        put(batch);
+        batch = new ArrayList<>();
+    }
+
+    // Records the error unless it is one thread giving up because another
+    // already failed.
+    private void fail(Throwable error) {
+        if (error instanceof CancellationException) { return; }
+        synchronized (this) {
+            if (failure == null) { failure = error; }
+        }
+    }
+
+    private void put(List<Stmt> statements) {
+        try {
+            batches.put(statements);
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException();
+        }
+    }
+
+    private static void join(Thread thread) {
+        boolean interrupted = false;
+        for (;;) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException error) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) { Thread.currentThread().interrupt(); }
+    }
+
+    // The token list shared by the scanner, which appends to it, and the
+    // parser, which reads it by index. Reading a token not scanned yet waits
+    // for it, and appending waits while the scanner is a full ring ahead of
+    // the parser. The parser never looks further back than the token before
+    // the last one it read, so the slots before that are reused: slot
+    // scanned % length holds token scanned - length until it is appended.
+    //
+    // scanned is written only by the scanner and read only by the parser,
+    // so neither takes the lock unless it has to wait. A side about to wait
+    // sets its flag and checks the other's progress again, and the other
+    // side checks the flag after making progress, so no wakeup is lost.
+    private static class TokenStream extends AbstractList<Token> {
+        private final Token[] ring;
+        private volatile int scanned = 0;
+        private volatile int read = 0;
+        private volatile boolean scannerWaiting = false;
+        private volatile boolean parserWaiting = false;
+        private boolean cancelled = false;
+
+        // The index of the first token scanned after the scanner's first
+        // error. Written by the scanner before the write to scanned that
+        // publishes that token, so a parser that has read a token sees
+        // whether the error came before it.
+        private int errorIndex = Integer.MAX_VALUE;
+
+        TokenStream(int capacity) {
+            this.ring = new Token[capacity];
+        }
+
+        @Override
+        public boolean add(Token token) {
+            if (!hasRoom(1)) { awaitRead(); }
+            ring[scanned % ring.length] = token;
+            scanned++;
+            if (parserWaiting) { wake(); }
+            return true;
+        }
+
+        @Override
+        public Token get(int index) {
+            if (index > read) {
+                read = index;
+                if (scannerWaiting && hasRoom(ring.length / 2)) { wake(); }
+            }
+            if (index >= scanned) { awaitScanned(index); }
+            return ring[index % ring.length];
+        }
+
+        @Override
+        public int size() {
+            return scanned;
+        }
+
+        // Called by the scanner as it reports an error, before it appends
+        // the next token.
+        void markError() {
+            if (errorIndex == Integer.MAX_VALUE) { errorIndex = scanned; }
+        }
+
+        // Whether the scanner reported an error before the first count
+        // tokens, which the parser has read.
+        boolean failedBefore(int count) {
+            return errorIndex < count;
+        }
+
+        // Whether the scanner reported an error, once the parser has read
+        // the last token.
+        boolean failed() {
+            return errorIndex != Integer.MAX_VALUE;
+        }
+
+        // Whether the scanner can append count tokens without overwriting
+        // one the parser may still read.
+        private boolean hasRoom(int count) {
+            return scanned + count <= read - 1 + ring.length;
+        }
+
+        // Makes waiting to read or append a token fail instead.
+        synchronized void cancel() {
+            cancelled = true;
+            notifyAll();
+        }
+
+        private synchronized void wake() {
+            notifyAll();
+        }
+
+        private synchronized void awaitRead() {
+            scannerWaiting = true;
+            try {
+                // wait for the parser to free half the ring rather than
+                // waking up for every token
+                while (!hasRoom(ring.length / 2)) {
+                    if (cancelled) { throw new CancellationException("The parser stopped reading."); }
+                    await();
+                }
+            } finally {
+                scannerWaiting = false;
+            }
+        }
+
+        private synchronized void awaitScanned(int index) {
+            parserWaiting = true;
+            try {
+                while (index >= scanned) {
+                    if (cancelled) { throw new CancellationException("The scanner failed."); }
+                    await();
+                }
+            } finally {
+                parserWaiting = false;
+            }
+        }
+
+        private void await() {
+            try {
+                wait();
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException();
+            }
+        }
+    }
+}
@@ -10,7 +10,8 @@ import com.drank.lox.TokenType;
 
 class Scanner {
     private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private final List<Token> tokens;
+    private final boolean fast;
     private int start = 0;
     private int current = 0;
     private int line = 1;
@@ -38,7 +39,17 @@ class Scanner {
     }
 
     Scanner(String source) {
+        this(source, new ArrayList<>(), false);
+    }
+
+    // Appends the tokens to the given list as they are scanned. A fast
+    // scanner skips whitespace, comments and string bodies in runs rather
+    // than going through advance() for every character; the tokens, lines
+    // and errors are the same.
+    Scanner(String source, List<Token> tokens, boolean fast) {
         this.source = source;
+        this.tokens = tokens;
+        this.fast = fast;
     }
 
     List<Token> scanTokens() {
@@ -52,6 +63,12 @@ class Scanner {
         return tokens;
     }
 
+    // Reports an error in the source. The pipeline overrides this to also
+    // mark where it was in the tokens it streams to the parser.
+    void error(int line, String message) {
+        Lox.error(line, message);
+    }
+
     private boolean isAtEnd() {
         return current >= source.length();
     }
@@ -82,10 +99,16 @@ class Scanner {
             // slash or comments
             case '/':
                 if (match('/')) {
-                    while (peek() != '\n' && !isAtEnd()) {
-                        advance();
+                    if (fast) {
+                        int end = source.indexOf('\n', current);
+                        current = end < 0 ? source.length() : end;
+                    } else {
+                        while (peek() != '\n' && !isAtEnd()) {
+                            advance();
+                        }
                     }
                 } else if (match('*')) {
+                    if (fast) { skipBlockComment(); }
                     block_comments();
                 } else {
                     addToken(TokenType.SLASH);
@@ -96,13 +119,18 @@ class Scanner {
             case ' ':
             case '\r':
             case '\t':
+                if (fast) { whitespace(); }
                 break;
             case '\n':
                 line++;
+                if (fast) { whitespace(); }
                 break;
 
             // string literals
-            case '"': string(); break;
+            case '"':
+                if (fast) { skipString(); }
+                string();
+                break;
 
             default:
                 if (isDigit(c)) {
@@ -110,7 +138,7 @@ class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    Lox.error(line, "Unexpected character.");
+                    error(line, "Unexpected character.");
                 }
                 break;
         }
@@ -153,7 +181,7 @@ class Scanner {
         }
 
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated string.");
+            error(line, "Unterminated string.");
             return;
         }
 
@@ -220,7 +248,7 @@ class Scanner {
         }
 
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated block comments.");
+            error(line, "Unterminated block comments.");
             return;
         }
 
@@ -229,4 +257,50 @@ class Scanner {
         advance();
     }
 
+    // Fast paths. String.indexOf is a HotSpot intrinsic that compares many
+    // characters per instruction, so runs are found with it and the
+    // newlines in them counted the same way. Each leaves current where the
+    // character at a time loop would have stopped, so the slow path that
+    // follows only has the last step left to do.
+
+    private void whitespace() {
+        int length = source.length();
+        while (current < length) {
+            char c = source.charAt(current);
+            if (c == '\n') {
+                line++;
+            } else if (c != ' ' && c != '\r' && c != '\t') {
+                break;
+            }
+            current++;
+        }
+    }
+
+    // Stops at the closing quote, or the end of the source.
+    private void skipString() {
+        int end = source.indexOf('"', current);
+        if (end < 0) { end = source.length(); }
+        countLines(end);
+    }
+
+    // block_comments() stops at the first '*', or before the first '/'
+    // after the start, or at the end of the source.
+    private void skipBlockComment() {
+        int length = source.length();
+        int star = source.indexOf('*', current);
+        int slash = source.indexOf('/', current + 1);
+        int end = Math.min(star < 0 ? length : star,
+                           slash < 0 ? length : slash - 1);
+        countLines(end);
+    }
+
+    // Moves current to end, counting the newlines passed.
+    private void countLines(int end) {
+        for (int newline = source.indexOf('\n', current);
+             newline >= 0 && newline < end;
+             newline = source.indexOf('\n', newline + 1)) {
+            line++;
+        }
+        current = end;
+    }
 }
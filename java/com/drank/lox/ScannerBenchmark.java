@@ -0,0 +1,75 @@
+package com.drank.lox;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Compares the character at a time scanner with the fast one on generated
+// sources dominated by comments, by string literals, and by ordinary code.
+//
+//   java -cp build/java com.drank.lox.ScannerBenchmark [lines] [runs]
+//
+// Each source has the given number of lines (100000 by default). The first
+// runs warm up the JIT and are not counted, the rest are averaged.
+public class ScannerBenchmark {
+    public static void main(String[] args) {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        Map<String, String> sources = new LinkedHashMap<>();
+        sources.put("comments", generate(lines, 0));
+        sources.put("strings", generate(lines, 1));
+        sources.put("code", generate(lines, 2));
+
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+            double scalar = measure(source.getValue(), false, runs);
+            double fast = measure(source.getValue(), true, runs);
+            System.out.printf("%-9s %6d kB   scalar %8.2f ms   fast %8.2f ms   %5.2fx%n",
+                              source.getKey(), source.getValue().length() / 1024,
+                              scalar, fast, scalar / fast);
+        }
+    }
+
+    // Average milliseconds to scan the source, after as many warm up runs.
+    private static double measure(String source, boolean fast, int runs) {
+        long total = 0;
+        for (int i = 0; i < 2 * runs; i++) {
+            long start = System.nanoTime();
+            int tokens = new Scanner(source, new ArrayList<>(), fast).scanTokens().size();
+            long elapsed = System.nanoTime() - start;
+            if (tokens == 0) { throw new AssertionError("No tokens scanned."); }
+            if (i >= runs) { total += elapsed; }
+        }
+        return total / 1e6 / runs;
+    }
+
+    // kind 0: mostly line and block comments, 1: mostly long string
+    // literals, 2: declarations and expressions with little of either.
+    private static String generate(int lines, int kind) {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            switch (kind) {
+                case 0:
+                    if (i % 10 == 0) {
+                        source.append("/* block comment ").append(i)
+                              .append("\n   spanning two lines, with nothing to scan in it */\n");
+                    } else {
+                        source.append("    // line comment ").append(i)
+                              .append(" explaining the next few lines in some detail\n");
+                    }
+                    break;
+                case 1:
+                    source.append("var s").append(i).append(" = \"a string literal of ")
+                          .append("some length, the kind a generated script embeds ")
+                          .append(i).append("\";\n");
+                    break;
+                default:
+                    source.append("var g").append(i).append(" = (g").append(i > 0 ? i - 1 : 0)
+                          .append(" + ").append(i).append(") * 2 - ").append(i % 7)
+                          .append(" / 3 == 1 ? 1 : 0;\n");
+                    break;
+            }
+        }
+        return source.toString();
+    }
+}
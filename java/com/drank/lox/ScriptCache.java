@@ -0,0 +1,203 @@
+package com.drank.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// Parsed and prepared scripts by the SHA-256 of their source, shared by
+// every session in the process, so a script submitted again to the daemon
+// or a batch is not scanned and parsed again.
+//
+// A script is kept with its syntax errors, replayed to each session that
+// submits it, and with the program that runs: optimized and annotated by
+// type inference as the options ask, then never changed again, so any
+// number of sessions may run it at once. The optimizer keeps globals for
+// sessions that use them after the run, so the two kinds of session get
+// separate entries.
+//
+// The cache holds at most capacity syntax tree nodes, counting both trees
+// of an optimized script, and evicts the least recently used scripts to
+// stay under it. A script larger than the whole cache is prepared but not
+// kept. A submission of a script that another thread is preparing waits
+// for that one instead of parsing it too.
+class ScriptCache {
+    // A prepared script. Nothing in it is changed once it is built.
+    static final class Script {
+        // the statements as parsed, null with syntax errors
+        final List<Stmt> statements;
+        // the statements to run
+        final List<Stmt> program;
+        // syntax errors as they were reported
+        final String errors;
+        // where a script over the AST quota is reported
+        final Token end;
+        final long nodes;
+        final long weight;
+
+        private Script(List<Stmt> statements, List<Stmt> program, String errors, Token end) {
+            this.statements = statements;
+            this.program = program;
+            this.errors = errors;
+            this.end = end;
+            this.nodes = statements == null ? 0 : Accounting.nodes(statements);
+            long optimized = program == statements ? 0 : Accounting.nodes(program);
+            // even an empty script costs an entry
+            this.weight = 1 + nodes + optimized;
+        }
+
+        // Reports the syntax errors to the session, as parsing would.
+        void replay(Session session) {
+            if (statements != null) { return; }
+            session.err.print(errors);
+            session.hadError = true;
+        }
+    }
+
+    private final long capacity;
+
+    // guarded by this, scripts in least recently used first order
+    private final LinkedHashMap<String, Script> scripts = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<Script>> preparing = new HashMap<>();
+    private long weight = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    ScriptCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    // The prepared script for the source, from the cache if it is there.
+    Script get(String source, boolean keepGlobals) {
+        String key = key(source, keepGlobals);
+
+        CompletableFuture<Script> pending;
+        boolean prepare = false;
+        synchronized (this) {
+            Script script = scripts.get(key);
+            if (script != null) {
+                hits++;
+                return script;
+            }
+
+            pending = preparing.get(key);
+            if (pending == null) {
+                pending = new CompletableFuture<>();
+                preparing.put(key, pending);
+                prepare = true;
+                misses++;
+            } else {
+                // shares the parse under way
+                hits++;
+            }
+        }
+
+        if (!prepare) {
+            try {
+                return pending.join();
+            } catch (CompletionException error) {
+                if (error.getCause() instanceof RuntimeException) { throw (RuntimeException)error.getCause(); }
+                if (error.getCause() instanceof Error) { throw (Error)error.getCause(); }
+                throw error;
+            }
+        }
+
+        Script script;
+        try {
+            script = prepare(source, keepGlobals);
+        } catch (RuntimeException | Error error) {
+            synchronized (this) { preparing.remove(key); }
+            pending.completeExceptionally(error);
+            throw error;
+        }
+        synchronized (this) {
+            preparing.remove(key);
+            add(key, script);
+        }
+        pending.complete(script);
+        return script;
+    }
+
+    private void add(String key, Script script) {
+        if (script.weight > capacity) { return; }
+
+        scripts.put(key, script);
+        weight += script.weight;
+        Iterator<Script> eldest = scripts.values().iterator();
+        while (weight > capacity) {
+            weight -= eldest.next().weight;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    // Scans, parses and prepares the source as Session does, collecting
+    // the syntax errors instead of reporting them to anyone.
+    private static Script prepare(String source, boolean keepGlobals) {
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        Session recorder = new Session(new PrintStream(errors, true, StandardCharsets.UTF_8));
+        Session previous = Lox.attach(recorder);
+        List<Token> tokens;
+        List<Stmt> statements;
+        try {
+            tokens = new Scanner(source, new ArrayList<>(), Lox.fastScan).scanTokens();
+            statements = new Parser(tokens, Lox.stackSafe, Lox.hashCons).parse();
+        } finally {
+            Lox.attach(previous);
+        }
+        Token end = tokens.get(tokens.size() - 1);
+
+        if (recorder.hadError) {
+            return new Script(null, null, errors.toString(StandardCharsets.UTF_8), end);
+        }
+
+        statements = Collections.unmodifiableList(statements);
+        List<Stmt> program = statements;
+        if (Lox.optimize) {
+            program = Collections.unmodifiableList(Optimizer.optimize(statements, keepGlobals));
+        }
+        if (Lox.inferTypes) {
+            new TypeInference().infer(program);
+        }
+        return new Script(statements, program, "", end);
+    }
+
+    private static String key(String source, boolean keepGlobals) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException error) {
+            // every Java platform has SHA-256
+            throw new AssertionError(error);
+        }
+        // the chars as they are, so sources that do not encode still differ
+        ByteBuffer chars = ByteBuffer.allocate(source.length() * 2);
+        chars.asCharBuffer().put(source);
+        byte[] hash = digest.digest(chars.array());
+
+        StringBuilder key = new StringBuilder(hash.length * 2 + 2);
+        for (byte b : hash) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.append(keepGlobals ? " g" : "").toString();
+    }
+
+    // The metrics as name=value pairs, for --memory-stats.
+    @Override
+    public synchronized String toString() {
+        return "hits=" + hits + " misses=" + misses + " evictions=" + evictions
+                + " scripts=" + scripts.size() + " weight=" + weight + "/" + capacity;
+    }
+}
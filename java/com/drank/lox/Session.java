@@ -0,0 +1,199 @@
+package com.drank.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Everything one script run owns: its interpreter and globals, where its
+// output goes and whether it has reported errors. Scanner, Parser and
+// Interpreter report errors through the static Lox methods, which forward
+// them to the session attached to the current thread, so sessions on
+// different threads do not see each other's state.
+class Session {
+    final Interpreter interpreter;
+    final PrintStream out;
+    final PrintStream err;
+    volatile boolean hadError = false;
+    volatile boolean hadRuntimeError = false;
+
+    // Set when the globals are used after a run, by the next line in the
+    // REPL or to save a snapshot, so the optimizer must keep their values.
+    boolean keepGlobals = false;
+
+    Session(PrintStream out, PrintStream err) {
+        this.interpreter = new Interpreter(Lox.stackSafe, out, new Accounting(err));
+        this.out = out;
+        this.err = err;
+
+        if (Lox.snapshot != null) {
+            Lox.snapshot.restore(interpreter);
+        }
+        if (Lox.debug) {
+            // paused statements and commands go to the terminal, output
+            // stays the script's own
+            interpreter.debugger = new Debugger(Lox.stdin(), err);
+            for (int line : Lox.breakpoints) { interpreter.debugger.setBreakpoint(line); }
+        }
+    }
+
+    // A session that only collects the syntax errors reported to it, for
+    // parsing a script outside of any run. It has no interpreter.
+    Session(PrintStream err) {
+        this.interpreter = null;
+        this.out = null;
+        this.err = err;
+    }
+
+    // Returns the parsed statements, or null if there were syntax errors.
+    // A --flat run lets go of the tree before the script runs, and returns
+    // an empty list unless the globals are kept.
+    List<Stmt> run(String source) {
+        Session previous = Lox.attach(this);
+        try {
+            if (Lox.pipeline) { return new Pipeline(this).run(source); }
+            return runPhased(source);
+        } finally {
+            if (Lox.memoryStats) {
+                err.println("[memory] " + interpreter.accounting);
+                if (Lox.cache != null) { err.println("[cache] " + Lox.cache); }
+            }
+            Lox.attach(previous);
+        }
+    }
+
+    private List<Stmt> runPhased(String source) {
+        if (Lox.cache != null) { return runCached(source); }
+        if (Lox.flat && !Lox.optimize) { return runFlat(source); }
+
+        List<Stmt> statements = new ArrayList<>();
+        try {
+            parse(source, statements::add);
+        } catch (RuntimeError error) {
+            // the quota stopped parsing, nothing has run
+            runtimeError(error);
+            return statements;
+        }
+        if (hadError) { return null; }
+
+        List<Stmt> program = statements;
+        if (Lox.optimize) {
+            program = Optimizer.optimize(statements, keepGlobals);
+        }
+        if (Lox.inferTypes) {
+            new TypeInference().infer(program);
+        }
+        if (Lox.flat) {
+            FlatAst flat = FlatAst.encode(program);
+            // as in runFlat(), only the arrays are kept while the script runs
+            program = null;
+            if (!keepGlobals) { statements = Collections.emptyList(); }
+            new FlatInterpreter(interpreter).interpret(flat);
+            return statements;
+        }
+        execute(program);
+        return statements;
+    }
+
+    // Runs the script in the flat form, which is encoded a statement at a
+    // time as the statements are parsed, so the tree of the whole script is
+    // never held, only the arrays and the statements a snapshot or the next
+    // line needs. Types are not used by the flat form and are not worked
+    // out.
+    private List<Stmt> runFlat(String source) {
+        List<Stmt> statements = new ArrayList<>();
+        FlatAst program;
+        try {
+            program = encode(source, statements);
+        } catch (RuntimeError error) {
+            runtimeError(error);
+            return statements;
+        }
+        if (program == null) { return null; }
+
+        new FlatInterpreter(interpreter).interpret(program);
+        return statements;
+    }
+
+    // Scans, parses and encodes the source, keeping the statements in kept
+    // if the globals are kept. Returns null if there were syntax errors.
+    private FlatAst encode(String source, List<Stmt> kept) {
+        FlatAst.Encoder encoder = new FlatAst.Encoder();
+        parse(source, statement -> {
+            // a syntax error is already reported and nothing will run
+            if (statement == null || hadError) { return; }
+            encoder.add(statement);
+            if (keepGlobals) { kept.add(statement); }
+        });
+        if (hadError) { return null; }
+        return encoder.finish();
+    }
+
+    // Scans and parses the source, handing on each statement, null for one
+    // with a syntax error. Each statement is charged to the AST quota as it
+    // is parsed, as in the pipeline, and a RuntimeError stops parsing at
+    // the quota, before the rest of the tree is built. Once there are
+    // syntax errors nothing will run and nothing more is charged, so all of
+    // them are reported.
+    private void parse(String source, Consumer<Stmt> statements) {
+        List<Token> tokens = new Scanner(source, new ArrayList<>(), Lox.fastScan).scanTokens();
+        Parser parser = new Parser(tokens, Lox.stackSafe, Lox.hashCons);
+        parser.parse(statement -> {
+            if (statement != null && !hadError) {
+                interpreter.accounting.ast(List.of(statement), parser.previous());
+            }
+            statements.accept(statement);
+        });
+    }
+
+    // Runs a script prepared by the cache, which parsed, optimized and
+    // annotated it for every session in the same way as runPhased().
+    private List<Stmt> runCached(String source) {
+        ScriptCache.Script script = Lox.cache.get(source, keepGlobals);
+        script.replay(this);
+        if (hadError) { return null; }
+
+        try {
+            interpreter.accounting.ast(script.nodes, script.end);
+        } catch (RuntimeError error) {
+            runtimeError(error);
+            return script.statements;
+        }
+
+        execute(script.program);
+        return script.statements;
+    }
+
+    private void execute(List<Stmt> program) {
+        if (interpreter.debugger != null) {
+            program = interpreter.debugger.instrument(program);
+        }
+
+        if (Lox.parallel) {
+            new Parallel(this).run(program);
+        } else if (Lox.flat) {
+            new FlatInterpreter(interpreter).interpret(FlatAst.encode(program));
+        } else {
+            interpreter.interpret(program);
+        }
+    }
+
+    // Exit status of the script, as sysexits.h codes.
+    int exitCode() {
+        if (hadError) { return 65; }
+        if (hadRuntimeError) { return 70; }
+        return 0;
+    }
+
+    void report(int line, String where, String message) {
+        err.println("[line " + line + "] Error " + where + ": " + message);
+        hadError = true;
+    }
+
+    void runtimeError(RuntimeError error) {
+        err.println(error.getMessage() + "\n[line "
+                + error.token.line + "]");
+        hadRuntimeError = true;
+    }
+}
@@ -0,0 +1,142 @@
+package com.drank.lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The globals left behind by running a prelude, saved so later runs can
+// define them directly instead of scanning, parsing and executing the
+// prelude again.
+//
+// File layout, big endian:
+//
+//   magic "LOXS", version int, count int,
+//   count * (name UTF, tag byte, value)
+//
+// where the value is empty for nil, true and false, a double for numbers
+// and a byte length int followed by UTF-8 bytes for strings.
+class Snapshot {
+    private static final int MAGIC = 0x4c4f5853;  // "LOXS"
+    private static final int VERSION = 1;
+
+    private static final byte NIL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte NUMBER = 3;
+    private static final byte STRING = 4;
+
+    private final Map<String, Object> globals;
+
+    private Snapshot(Map<String, Object> globals) {
+        this.globals = globals;
+    }
+
+    // Captures the current value of every global in base, which may be null,
+    // and every global the prelude declares, in the order they were first
+    // declared.
+    static Snapshot capture(Interpreter interpreter, Snapshot base, List<Stmt> prelude) {
+        Map<String, Object> globals = new LinkedHashMap<>();
+        if (base != null) {
+            for (String name : base.globals.keySet()) {
+                Token token = new Token(TokenType.IDENTIFIER, name, null, 0);
+                globals.put(name, interpreter.lookup(token));
+            }
+        }
+        for (Stmt stmt : prelude) {
+            if (stmt instanceof Stmt.Var) {
+                Token name = ((Stmt.Var)stmt).name;
+                globals.put(name.lexeme, interpreter.lookup(name));
+            }
+        }
+        return new Snapshot(globals);
+    }
+
+    void restore(Interpreter interpreter) {
+        for (Map.Entry<String, Object> global : globals.entrySet()) {
+            interpreter.define(global.getKey(), global.getValue());
+        }
+    }
+
+    int size() {
+        return globals.size();
+    }
+
+    void write(Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(globals.size());
+
+            for (Map.Entry<String, Object> global : globals.entrySet()) {
+                out.writeUTF(global.getKey());
+                writeValue(out, global.getValue());
+            }
+        }
+    }
+
+    static Snapshot read(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(path + " is not a jlox snapshot.");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ".");
+            }
+
+            int count = in.readInt();
+            Map<String, Object> globals = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                globals.put(name, readValue(in));
+            }
+            return new Snapshot(globals);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NIL);
+        } else if (value instanceof Boolean) {
+            out.writeByte((boolean)value ? TRUE : FALSE);
+        } else if (value instanceof Double) {
+            out.writeByte(NUMBER);
+            out.writeDouble((double)value);
+        } else if (value instanceof String) {
+            // writeUTF is limited to 64k, strings built at runtime are not
+            byte[] bytes = ((String)value).getBytes(StandardCharsets.UTF_8);
+            out.writeByte(STRING);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else {
+            throw new IOException("Can not snapshot value " + value + ".");
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NIL: return null;
+            case FALSE: return false;
+            case TRUE: return true;
+            case NUMBER: return in.readDouble();
+            case STRING: {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+
+        throw new IOException("Corrupt snapshot value tag " + tag + ".");
+    }
+}
@@ -0,0 +1,136 @@
+package com.drank.lox;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Compares getting a fresh interpreter ready from a prelude's source with
+// getting it ready from a snapshot of the same prelude.
+//
+//   java -cp build/java com.drank.lox.StartupBenchmark [prelude.lox] [runs]
+//
+// Without a prelude, one with 20000 generated globals is used. Every start
+// is a new JVM, as PerfSuite runs its scripts, so each one pays what a new
+// process pays: the JVM's own start, loading the classes and running them
+// before the JIT has compiled anything. A start that only boots the JVM is
+// measured too, as the floor. Reported are the median and the fastest of
+// the runs (10 by default), as the wall time of the whole process and the
+// time the child spent reading and setting up the globals.
+public class StartupBenchmark {
+    private static final String[] MODES = { "jvm", "cold", "snapshot" };
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && args[0].equals("--start")) {
+            start(args[1], Paths.get(args[2]));
+            return;
+        }
+
+        String prelude = args.length > 0
+            ? new String(Files.readAllBytes(Paths.get(args[0])), Charset.defaultCharset())
+            : generatePrelude(20000);
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        Path source = Files.createTempFile("jlox", ".lox");
+        Path file = Files.createTempFile("jlox", ".snapshot");
+        try {
+            Files.write(source, prelude.getBytes(Charset.defaultCharset()));
+            Interpreter interpreter = new Interpreter();
+            List<Stmt> statements = new Parser(new Scanner(prelude).scanTokens()).parse();
+            if (Lox.session().hadError) { System.exit(65); }
+            interpreter.interpret(statements);
+            Snapshot.capture(interpreter, null, statements).write(file);
+            System.out.println("snapshot: " + Files.size(file) + " bytes");
+
+            long[][] wall = new long[MODES.length][runs];
+            long[][] ready = new long[MODES.length][runs];
+            // the modes take turns, so a noisy moment does not fall on one
+            for (int i = 0; i < runs; i++) {
+                for (int mode = 0; mode < MODES.length; mode++) {
+                    Path input = MODES[mode].equals("snapshot") ? file : source;
+                    long start = System.nanoTime();
+                    ready[mode][i] = runChild(MODES[mode], input);
+                    wall[mode][i] = System.nanoTime() - start;
+                }
+            }
+            for (int mode = 0; mode < MODES.length; mode++) {
+                report(MODES[mode], wall[mode], ready[mode]);
+            }
+        } finally {
+            Files.delete(source);
+            Files.delete(file);
+        }
+    }
+
+    // Starts a new JVM that gets ready in the given mode and returns the
+    // nanoseconds it reports that took.
+    private static long runChild(String mode, Path input) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(StartupBenchmark.class.getName());
+        command.add("--start");
+        command.add(mode);
+        command.add(input.toString());
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        process.getOutputStream().close();
+        String out = new String(process.getInputStream().readAllBytes(), Charset.defaultCharset()).trim();
+        if (process.waitFor() != 0 || !out.startsWith("ready ")) {
+            throw new IOException("The " + mode + " start failed:\n" + out);
+        }
+        return Long.parseLong(out.substring("ready ".length()));
+    }
+
+    // Child side: gets an interpreter ready as jlox would and reports how
+    // long that took.
+    private static void start(String mode, Path input) throws IOException {
+        long start = System.nanoTime();
+        switch (mode) {
+            case "jvm":
+                break;
+            case "cold": {
+                String prelude = new String(Files.readAllBytes(input), Charset.defaultCharset());
+                new Interpreter().interpret(new Parser(new Scanner(prelude).scanTokens()).parse());
+                if (Lox.session().hadError || Lox.session().hadRuntimeError) { System.exit(70); }
+                break;
+            }
+            case "snapshot":
+                Snapshot.read(input).restore(new Interpreter());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown start mode " + mode + ".");
+        }
+        System.out.println("ready " + (System.nanoTime() - start));
+    }
+
+    private static void report(String name, long[] wall, long[] ready) {
+        long[] sortedWall = wall.clone();
+        long[] sortedReady = ready.clone();
+        Arrays.sort(sortedWall);
+        Arrays.sort(sortedReady);
+        System.out.printf("%-9s process median %8.2f ms  min %8.2f ms   ready median %8.2f ms  min %8.2f ms%n",
+                          name,
+                          sortedWall[sortedWall.length / 2] / 1e6, sortedWall[0] / 1e6,
+                          sortedReady[sortedReady.length / 2] / 1e6, sortedReady[0] / 1e6);
+    }
+
+    private static String generatePrelude(int globals) {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < globals; i++) {
+            if (i % 2 == 0) {
+                source.append("var g").append(i).append(" = ").append(i)
+                      .append(" * 2 + ").append(i % 7).append(" / 3;\n");
+            } else {
+                source.append("var g").append(i).append(" = \"name\" + \"_")
+                      .append(i).append("\";\n");
+            }
+        }
+        return source.toString();
+    }
+}
@@ -2,15 +2,31 @@ package com.drank.lox;
 
 import java.util.List;
 
-abstract class Stmt {
+abstract sealed class Stmt {
+    static final int EXPRESSION = 0;
+    static final int PRINT = 1;
+    static final int VAR = 2;
+    static final int BREAKPOINT = 3;
+
     interface Visitor<R> {
         R visitExpressionStmt(Expression expr);
         R visitPrintStmt(Print expr);
         R visitVarStmt(Var expr);
+        R visitBreakpointStmt(Breakpoint expr);
+    }
+
+    final int kind;
+
+    // Line the statement starts on, set by the Parser.
+    int line = 0;
+
+    private Stmt(int kind) {
+        this.kind = kind;
     }
 
-    static class Expression extends Stmt {
+    static final class Expression extends Stmt {
         Expression(Expr expression) {
+            super(EXPRESSION);
             this.expression = expression;
         }
 
@@ -22,8 +38,9 @@ abstract class Stmt {
         final Expr expression;
     }
 
-    static class Print extends Stmt {
+    static final class Print extends Stmt {
         Print(Expr expression) {
+            super(PRINT);
             this.expression = expression;
         }
 
@@ -35,8 +52,9 @@ abstract class Stmt {
         final Expr expression;
     }
 
-    static class Var extends Stmt {
+    static final class Var extends Stmt {
         Var(Token name, Expr initializer) {
+            super(VAR);
             this.name = name;
             this.initializer = initializer;
         }
@@ -50,5 +68,34 @@ abstract class Stmt {
         final Expr initializer;
     }
 
+    static final class Breakpoint extends Stmt {
+        Breakpoint(Stmt statement, int index) {
+            super(BREAKPOINT);
+            this.statement = statement;
+            this.index = index;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitBreakpointStmt(this);
+        }
+
+        final Stmt statement;
+        final int index;
+    }
+
     abstract <R> R accept(Visitor<R> visitor);
+
+    // Calls the visit method for the kind of stmt with a single switch
+    // instead of a virtual accept call followed by the visit call.
+    static <R> R dispatch(Stmt stmt, Visitor<R> visitor) {
+        switch (stmt.kind) {
+            case EXPRESSION: return visitor.visitExpressionStmt((Expression)stmt);
+            case PRINT: return visitor.visitPrintStmt((Print)stmt);
+            case VAR: return visitor.visitVarStmt((Var)stmt);
+            case BREAKPOINT: return visitor.visitBreakpointStmt((Breakpoint)stmt);
+        }
+
+        throw new AssertionError("Unknown Stmt kind " + stmt.kind);
+    }
 }
@@ -0,0 +1,245 @@
+package com.drank.lox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Proves the types of expression results so the Interpreter can skip its
+// operand checks where they can not fail. Statements run in order and a
+// runtime error ends the script, so when a statement runs every one before
+// it has completed: the pass follows the types of globals through the
+// statements and through each expression in evaluation order, and an
+// operation that checks its operands, like -, yields a number whenever
+// evaluation gets past it.
+//
+// A node's type holds for every evaluation of it. A node shared between
+// places gets the merge of the types it has in each, and anything not
+// proven is UNKNOWN, which no later merge can undo. The types of globals
+// carry over between calls of infer(), for scripts fed a statement at a
+// time, but start out unknown, so globals from an earlier run or a
+// snapshot are never assumed to have a type.
+class TypeInference {
+    static final int NOT_ANALYZED = 0;
+    static final int UNKNOWN = 1;
+    static final int NUMBER = 2;
+    static final int STRING = 3;
+
+    // types of globals, a missing one is UNKNOWN
+    private final Map<String, Integer> globals = new HashMap<>();
+
+    // Changes to globals as name and previous type, so those made in one
+    // branch of a conditional can be undone before the other is inferred.
+    private final List<String> changedNames = new ArrayList<>();
+    private final List<Integer> changedTypes = new ArrayList<>();
+
+    static int merge(int a, int b) {
+        if (a == NOT_ANALYZED) { return b; }
+        if (b == NOT_ANALYZED) { return a; }
+        return a == b ? a : UNKNOWN;
+    }
+
+    void infer(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            switch (statement.kind) {
+                case Stmt.EXPRESSION:
+                    infer(((Stmt.Expression)statement).expression);
+                    break;
+                case Stmt.PRINT:
+                    infer(((Stmt.Print)statement).expression);
+                    break;
+                case Stmt.VAR: {
+                    Stmt.Var var = (Stmt.Var)statement;
+                    // an uninitialized global holds nil
+                    int type = var.initializer == null ? UNKNOWN : infer(var.initializer);
+                    set(var.name.lexeme, type);
+                    break;
+                }
+            }
+        }
+        // nothing done so far will be undone
+        changedNames.clear();
+        changedTypes.clear();
+    }
+
+    // A pending step: a node to visit, or one whose operands have been
+    // visited and whose own type is now worked out in the given state.
+    private static final int VISIT = 0;
+    private static final int COMBINE = 1;
+    private static final int AFTER_CONDITION = 2;
+    private static final int AFTER_THEN = 3;
+    private static final int AFTER_ELSE = 4;
+
+    private static final class Step {
+        final Expr expr;
+        final int state;
+        int mark;
+        Map<String, Integer> thenGlobals;
+        int thenType;
+
+        Step(Expr expr, int state) {
+            this.expr = expr;
+            this.state = state;
+        }
+    }
+
+    // Infers the types in expr, without recursing so that trees from the
+    // stack safe parser do not overflow, and returns the type of expr.
+    private int infer(Expr root) {
+        Deque<Step> steps = new ArrayDeque<>();
+        Deque<Integer> types = new ArrayDeque<>();
+        steps.push(new Step(root, VISIT));
+
+        while (!steps.isEmpty()) {
+            Step step = steps.pop();
+            Expr expr = step.expr;
+
+            if (step.state == VISIT) {
+                switch (expr.kind) {
+                    case Expr.LITERAL: {
+                        Object value = ((Expr.Literal)expr).value;
+                        types.push(annotate(expr, value instanceof Double ? NUMBER
+                                                : value instanceof String ? STRING
+                                                : UNKNOWN));
+                        break;
+                    }
+                    case Expr.VARIABLE:
+                        types.push(annotate(expr, get(((Expr.Variable)expr).name.lexeme)));
+                        break;
+                    case Expr.GROUPING:
+                        steps.push(new Step(expr, COMBINE));
+                        steps.push(new Step(((Expr.Grouping)expr).expression, VISIT));
+                        break;
+                    case Expr.UNARY:
+                        steps.push(new Step(expr, COMBINE));
+                        steps.push(new Step(((Expr.Unary)expr).right, VISIT));
+                        break;
+                    case Expr.BINARY:
+                        steps.push(new Step(expr, COMBINE));
+                        steps.push(new Step(((Expr.Binary)expr).right, VISIT));
+                        steps.push(new Step(((Expr.Binary)expr).left, VISIT));
+                        break;
+                    case Expr.ASSIGN:
+                        steps.push(new Step(expr, COMBINE));
+                        steps.push(new Step(((Expr.Assign)expr).value, VISIT));
+                        break;
+                    case Expr.CONDITIONAL:
+                        steps.push(new Step(expr, AFTER_CONDITION));
+                        steps.push(new Step(((Expr.Conditional)expr).condition, VISIT));
+                        break;
+                }
+                continue;
+            }
+
+            switch (step.state) {
+                case COMBINE:
+                    types.push(annotate(expr, combine(expr, types)));
+                    break;
+                case AFTER_CONDITION: {
+                    types.pop();
+                    Step then = new Step(expr, AFTER_THEN);
+                    then.mark = changedNames.size();
+                    steps.push(then);
+                    steps.push(new Step(((Expr.Conditional)expr).thenBranch, VISIT));
+                    break;
+                }
+                case AFTER_THEN: {
+                    Step otherwise = new Step(expr, AFTER_ELSE);
+                    otherwise.mark = step.mark;
+                    otherwise.thenType = types.pop();
+                    otherwise.thenGlobals = undo(step.mark);
+                    steps.push(otherwise);
+                    steps.push(new Step(((Expr.Conditional)expr).elseBranch, VISIT));
+                    break;
+                }
+                case AFTER_ELSE: {
+                    int elseType = types.pop();
+                    Map<String, Integer> elseGlobals = undo(step.mark);
+
+                    // a global changed in either branch gets the merge of
+                    // its types after each of them
+                    for (Map.Entry<String, Integer> global : step.thenGlobals.entrySet()) {
+                        String name = global.getKey();
+                        set(name, merge(global.getValue(), elseGlobals.getOrDefault(name, get(name))));
+                    }
+                    for (Map.Entry<String, Integer> global : elseGlobals.entrySet()) {
+                        String name = global.getKey();
+                        if (!step.thenGlobals.containsKey(name)) {
+                            set(name, merge(get(name), global.getValue()));
+                        }
+                    }
+                    types.push(annotate(expr, merge(step.thenType, elseType)));
+                    break;
+                }
+            }
+        }
+
+        return types.pop();
+    }
+
+    // The type of expr from the types of its operands, on top of types.
+    private int combine(Expr expr, Deque<Integer> types) {
+        switch (expr.kind) {
+            case Expr.GROUPING:
+                return types.pop();
+            case Expr.UNARY:
+                types.pop();
+                // - fails on anything but a number, ! yields a boolean
+                return ((Expr.Unary)expr).operator.type == TokenType.MINUS ? NUMBER : UNKNOWN;
+            case Expr.BINARY: {
+                int right = types.pop();
+                int left = types.pop();
+                switch (((Expr.Binary)expr).operator.type) {
+                    case MINUS:
+                    case STAR:
+                    case SLASH:
+                        return NUMBER;
+                    case PLUS:
+                        if (left == NUMBER && right == NUMBER) { return NUMBER; }
+                        if (left == STRING || right == STRING) { return STRING; }
+                        return UNKNOWN;
+                    default:
+                        return UNKNOWN;
+                }
+            }
+            case Expr.ASSIGN: {
+                int type = types.pop();
+                set(((Expr.Assign)expr).name.lexeme, type);
+                return type;
+            }
+        }
+        throw new AssertionError("Unexpected expression kind " + expr.kind);
+    }
+
+    // Sets the type of expr, merged with any it has from elsewhere, and
+    // returns the type it has here.
+    private static int annotate(Expr expr, int type) {
+        expr.type = merge(expr.type, type);
+        return type;
+    }
+
+    private int get(String name) {
+        return globals.getOrDefault(name, UNKNOWN);
+    }
+
+    private void set(String name, int type) {
+        changedNames.add(name);
+        changedTypes.add(get(name));
+        globals.put(name, type);
+    }
+
+    // Undoes the changes to globals since mark and returns the types the
+    // changed ones had before being undone.
+    private Map<String, Integer> undo(int mark) {
+        Map<String, Integer> undone = new HashMap<>();
+        for (int i = changedNames.size() - 1; i >= mark; i--) {
+            String name = changedNames.remove(i);
+            int previous = changedTypes.remove(i);
+            undone.putIfAbsent(name, get(name));
+            globals.put(name, previous);
+        }
+        return undone;
+    }
+}
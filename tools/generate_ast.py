@@ -4,7 +4,7 @@ import sys
 import os
 
 
-def define_ast(output_dir, baseclass, classes):
+def define_ast(output_dir, baseclass, classes, annotations=()):
     file = os.path.join(output_dir, baseclass) + '.java'
 
     with open(file, 'w') as f:
@@ -15,22 +15,35 @@ def define_ast(output_dir, baseclass, classes):
         write_code(f, indent, 'import java.util.List;\n\n')
 
         # base class
-        write_code(f, indent, 'abstract class %s {\n' % baseclass)
+        write_code(f, indent, 'abstract sealed class %s {\n' % baseclass)
 
-        # visitor
+        # node kinds
         indent += 1
+        define_kinds(f, indent, classes)
+
+        # visitor
         define_visitor(f, indent, baseclass, classes)
 
+        # base class kind, annotations set by later passes, and constructor
+        write_code(f, indent, 'final int kind;\n\n')
+        for comment, field in annotations:
+            write_code(f, indent, '// %s\n' % comment)
+            write_code(f, indent, '%s;\n\n' % field)
+        write_code(f, indent, 'private %s(int kind) {\n' % baseclass)
+        write_code(f, indent + 1, 'this.kind = kind;\n')
+        write_code(f, indent, '}\n\n')
+
         for cl in classes:
             name = cl['class']
             fields = cl['fields']
 
             # class
-            write_code(f, indent, 'static class %s extends %s {\n' % (name, baseclass))
+            write_code(f, indent, 'static final class %s extends %s {\n' % (name, baseclass))
 
             # constructor
             indent += 1
             write_code(f, indent, '%s(%s) {\n' % (name, ', '.join(fields)))
+            write_code(f, indent + 1, 'super(%s);\n' % kind_name(name))
 
             for field in fields:
                 var = field.split()[1]
@@ -54,7 +67,10 @@ def define_ast(output_dir, baseclass, classes):
             write_code(f, indent, '}\n\n')
 
         # base class accept method
-        write_code(f, indent, "abstract <R> R accept(Visitor<R> visitor);\n")
+        write_code(f, indent, "abstract <R> R accept(Visitor<R> visitor);\n\n")
+
+        # switch dispatcher
+        define_dispatch(f, indent, baseclass, classes)
 
         # end base class
         indent -= 1
@@ -63,6 +79,35 @@ def define_ast(output_dir, baseclass, classes):
     print('Created %s' % file)
 
 
+def kind_name(name):
+    return name.upper()
+
+
+def define_kinds(f, indent, classes):
+    for i, c in enumerate(classes):
+        write_code(f, indent, 'static final int %s = %d;\n' % (kind_name(c['class']), i))
+
+    f.write('\n')
+
+
+def define_dispatch(f, indent, baseclass, classes):
+    var = baseclass.lower()
+
+    write_code(f, indent, '// Calls the visit method for the kind of %s with a single switch\n' % var)
+    write_code(f, indent, '// instead of a virtual accept call followed by the visit call.\n')
+    write_code(f, indent, 'static <R> R dispatch(%s %s, Visitor<R> visitor) {\n' % (baseclass, var))
+    write_code(f, indent + 1, 'switch (%s.kind) {\n' % var)
+
+    for c in classes:
+        name = c['class']
+        write_code(f, indent + 2, 'case %s: return visitor.visit%s%s((%s)%s);\n'
+                   % (kind_name(name), name, baseclass, name, var))
+
+    write_code(f, indent + 1, '}\n\n')
+    write_code(f, indent + 1, 'throw new AssertionError("Unknown %s kind " + %s.kind);\n' % (baseclass, var))
+    write_code(f, indent, '}\n')
+
+
 def define_visitor(f, indent, baseclass, classes):
     write_code(f, indent, 'interface Visitor<R> {\n')
 
@@ -93,6 +138,10 @@ if __name__ == '__main__':
                 {'class': 'Unary', 'fields': ['Token operator', 'Expr right']},
                 {'class': 'Conditional', 'fields': ['Expr condition', 'Expr thenBranch', 'Expr elseBranch']},
                 {'class': 'Variable', 'fields': ['Token name']},
+            ],
+            [
+                ('Result type proven by TypeInference, NOT_ANALYZED until it runs.',
+                 'int type = TypeInference.NOT_ANALYZED'),
             ]
     )
 
@@ -101,5 +150,10 @@ if __name__ == '__main__':
                 {'class': 'Expression', 'fields': ['Expr expression']},
                 {'class': 'Print', 'fields': ['Expr expression']},
                 {'class': 'Var', 'fields': ['Token name', 'Expr initializer']},
+                {'class': 'Breakpoint', 'fields': ['Stmt statement', 'int index']},
+            ],
+            [
+                ('Line the statement starts on, set by the Parser.',
+                 'int line = 0'),
             ]
     )
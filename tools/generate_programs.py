@@ -0,0 +1,82 @@
+#!/usr/bin/env python
+
+# Writes small random Lox programs over a few globals, for diffcheck to run
+# in every mode. A program is chosen by its seed alone, so a failing one can
+# be written again with the seed in its name. Odd seeds use mostly numbers,
+# so more of the arithmetic folds and runs on the numeric paths; even seeds
+# mix in strings, booleans and nil, so more of it fails at runtime.
+
+import os
+import random
+import sys
+
+
+def generate(seed, statements=12, names=4):
+    r = random.Random(seed)
+    numeric = seed % 2 == 1
+    variables = ['g%d' % i for i in range(names)]
+
+    def literal():
+        c = r.random()
+        if c < (0.85 if numeric else 0.5):
+            return str(r.choice([0, 1, 2, 3, 0.5, 10]))
+        if c < (0.93 if numeric else 0.7):
+            return '"%s"' % r.choice(['a', 'b', 'xy', ''])
+        return r.choice(['true', 'false', 'nil'])
+
+    def expr(depth):
+        c = r.random()
+        if depth <= 0 or c < 0.25:
+            return literal()
+        if c < 0.5:
+            return r.choice(variables)
+        if c < 0.7:
+            operator = r.choice(['+', '-', '*', '/', '==', '!=', '<', '>=', '+', '+'])
+            return '%s %s %s' % (expr(depth - 1), operator, expr(depth - 1))
+        if c < 0.77:
+            return '%s(%s)' % (r.choice(['-', '!']), expr(depth - 1))
+        if c < 0.87:
+            return '(%s = %s)' % (r.choice(variables), expr(depth - 1))
+        if c < 0.93:
+            return '(%s = %s ? %s : %s)' % (r.choice(variables), expr(depth - 1),
+                                            expr(depth - 1), expr(depth - 1))
+        if c < 0.95:
+            return '(%s = %s, %s)' % (r.choice(variables), expr(depth - 1), expr(depth - 1))
+        return '(%s)' % expr(depth - 1)
+
+    lines = []
+    initial = ['0', '1', '2', '3', '5'] if numeric else ['0', '1', '2', '"s"', 'nil', 'true']
+    for variable in variables:
+        if r.random() < 0.85:
+            lines.append('var %s = %s;' % (variable, r.choice(initial)))
+    for i in range(statements):
+        c = r.random()
+        if c < 0.35:
+            lines.append('var %s = %s;' % (r.choice(variables), expr(3)))
+        elif c < 0.4:
+            lines.append('var %s;' % r.choice(variables))
+        elif c < 0.7:
+            lines.append('print %s;' % expr(3))
+        elif c < 0.9:
+            lines.append('%s = %s;' % (r.choice(variables), expr(3)))
+        else:
+            lines.append('%s;' % expr(3))
+
+    # some programs on one line, so the REPL runs them as a single entry
+    separator = '\n' if r.random() < 0.7 else ' '
+    return separator.join(lines) + '\n'
+
+
+if __name__ == '__main__':
+    if len(sys.argv) != 4:
+        sys.stderr.write('Usage: generate_programs.py dir count first-seed\n')
+        sys.exit(64)
+
+    output_dir = sys.argv[1]
+    count = int(sys.argv[2])
+    first = int(sys.argv[3])
+
+    os.makedirs(output_dir, exist_ok=True)
+    for seed in range(first, first + count):
+        with open(os.path.join(output_dir, 'p%06d.lox' % seed), 'w') as f:
+            f.write(generate(seed))